@@ -0,0 +1,297 @@
+package lparticlesystem;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+
+import processing.core.PVector;
+
+/**
+ * Headless micro-benchmarks for derivation, tree building, particle stepping and quaternion math.
+ * Each benchmark is warmed up, then timed, and reports time and bytes allocated per operation
+ * across all threads.
+ *
+ * <pre>java lparticlesystem.Benchmarks [grammar directory] [name filter]</pre>
+ */
+public class Benchmarks {
+
+  private static final long WARMUP_NANOS = 1000000000L;
+  private static final long MEASUREMENT_NANOS = 3000000000L;
+  private static final int[] PARTICLE_COUNTS = { 10000, 100000, 1000000 };
+  private static final int QUATERNION_BATCH = 1000000;
+  private static final int MAX_DERIVE_ITERATIONS = 32;
+  private static final long MAX_DERIVED_SYMBOLS = 1L << 26;
+  // The sketch's timestep. Particles seeded together cross their first segment on the second step,
+  // so each run of two steps moves, branches, kills and compacts every particle once.
+  private static final float SIMULATION_DT = 1.0f / 60.0f;
+  private static final int PARTICLE_STEPS = 2;
+  // Particles need a tree that branches to be born and one with leaves to die. This one replaces
+  // about a quarter of the population per run.
+  private static final String PARTICLE_GRAMMAR = "simple.json";
+
+  private interface Benchmark {
+    long run();
+  }
+
+  // A benchmark with untimed work before every run, such as building fresh state for a cold run.
+  private interface SetupBenchmark extends Benchmark {
+    void setup();
+  }
+
+  private static volatile long sink;
+
+  public static void main(final String[] arguments) {
+    final File directory = new File(arguments.length > 0 ? arguments[0] : "source/lparticlesystem");
+    final String filter = arguments.length > 1 ? arguments[1] : "";
+    final File[] grammars = directory.listFiles(new FilenameFilter() {
+
+      @Override public boolean accept(final File dir, final String name) {
+        return name.endsWith(".json");
+      }
+    });
+    if (null == grammars) {
+      System.err.println("No grammars found in " + directory);
+      System.exit(1);
+    }
+    Arrays.sort(grammars);
+    System.out.printf("%-48s %14s %14s %14s%n", "benchmark", "ns/op", "B/op", "MB/s alloc");
+    for (final File file : grammars) {
+      final LSystem lsystem = LSystem.load(file);
+      final Grammar grammar = lsystem.getGrammar();
+      final String name = file.getName().replace(".json", "");
+      final int iterations = lsystem.getIterations();
+      // The configured depth and the three below it, plus the first two depths at which the
+      // parallel rewrite engages. Parallel rows run only where it does, so none of them measures
+      // the serial scan.
+      int deep = 0;
+      while (deep < MAX_DERIVE_ITERATIONS && !grammar.derivesInParallel(deep)) {
+        ++deep;
+      }
+      final SortedSet<Integer> depths = new TreeSet<>();
+      for (int i = Math.max(0, iterations - 3); i <= iterations; ++i) {
+        depths.add(i);
+      }
+      if (grammar.derivesInParallel(deep)) {
+        depths.add(deep);
+        depths.add(deep + 1);
+      }
+      for (final int count : depths) {
+        if (grammar.length(count) > MAX_DERIVED_SYMBOLS) {
+          continue;
+        }
+        measure(filter, "derive." + name + "." + count, 1, new Benchmark() {
+
+          @Override public long run() {
+            return grammar.derive(count).length;
+          }
+        });
+        if (!grammar.derivesInParallel(count)) {
+          continue;
+        }
+        measure(filter, "derive.parallel." + name + "." + count, 1, new Benchmark() {
+
+          @Override public long run() {
+            return grammar.derive(count, true).length;
+          }
+        });
+      }
+      final CharBuffer symbols = lsystem.symbols();
+      for (final boolean parallel : new boolean[] { false, true }) {
+        final String variant = parallel ? "parallel." : "";
+        measure(filter, "buildTree.cold." + variant + name, 1, new SetupBenchmark() {
+          private LSystem cold;
+
+          @Override public void setup() {
+            cold = LSystem.load(file);
+            cold.setParallel(parallel);
+          }
+
+          @Override public long run() {
+            return cold.buildTree(symbols, 1.0f, 1.0f).size();
+          }
+        });
+        final LSystem warm = LSystem.load(file);
+        warm.setParallel(parallel);
+        warm.buildTree(symbols, 1.0f, 1.0f);
+        measure(filter, "buildTree.rebuild." + variant + name, 1, new Benchmark() {
+
+          @Override public long run() {
+            return warm.buildTree(symbols, 1.0f, 1.0f).size();
+          }
+        });
+      }
+      final Tree branches = lsystem.buildTree(1.0f, 1.0f);
+      final float fovy = (float) Math.PI / 3.0f;
+      final float cameraZ = 768 / 2.0f / (float) Math.tan(fovy / 2.0f);
+      final Rasterizer rasterizer = new Rasterizer(1024, 768).setCamera(new PVector(0.0f, 0.0f,
+          1000.0f), new Quaternion(), fovy, cameraZ / 10.0f, cameraZ * 10.0f);
+      final int[] frame = new int[rasterizer.width * rasterizer.height];
+      final Particles none = new Particles();
+      measure(filter, "rasterize." + name, branches.size(), new Benchmark() {
+
+        @Override public long run() {
+          rasterizer.clear(0);
+          rasterizer.draw(branches, none, true);
+          rasterizer.render(frame);
+          return frame[0];
+        }
+      });
+    }
+
+    final File particleGrammar = new File(directory, PARTICLE_GRAMMAR);
+    final Tree tree = LSystem.load(particleGrammar.exists() ? particleGrammar : grammars[0])
+        .buildTree(1.0f, 1.0f);
+    for (final int count : PARTICLE_COUNTS) {
+      final Particles seeded = new Particles();
+      final Random random = new Random(0);
+      for (int i = 0; i < count; ++i) {
+        seeded.add(tree, random.nextInt(tree.size()), 0.0f, 0.0f, 0.0f);
+      }
+      for (final boolean parallel : new boolean[] { false, true }) {
+        final Particles particles = new Particles();
+        measure(filter, "particles." + (parallel ? "parallel." : "serial.") + count,
+            PARTICLE_STEPS * count, new SetupBenchmark() {
+
+              @Override public void setup() {
+                particles.copyFrom(seeded);
+              }
+
+              @Override public long run() {
+                for (int i = 0; i < PARTICLE_STEPS; ++i) {
+                  particles.update(tree, SIMULATION_DT, parallel);
+                }
+                return particles.size();
+              }
+            });
+      }
+    }
+
+    final Quaternion a = Quaternion.fromAxisAngle(new PVector(1.0f, 2.0f, 3.0f), 0.5f);
+    final Quaternion b = Quaternion.fromAxisAngle(new PVector(-3.0f, 1.0f, 2.0f), 1.5f);
+    final PVector v = new PVector(1.0f, 0.0f, 0.0f);
+    measure(filter, "quaternion.times", QUATERNION_BATCH, new Benchmark() {
+
+      @Override public long run() {
+        Quaternion q = a;
+        for (int i = 0; i < QUATERNION_BATCH; ++i) {
+          q = b.times(q);
+        }
+        return Float.floatToIntBits(q.w);
+      }
+    });
+    measure(filter, "quaternion.premulLocal", QUATERNION_BATCH, new Benchmark() {
+
+      @Override public long run() {
+        final Quaternion q = a.get();
+        for (int i = 0; i < QUATERNION_BATCH; ++i) {
+          q.premulLocal(b);
+        }
+        return Float.floatToIntBits(q.w);
+      }
+    });
+    measure(filter, "quaternion.setAxisAngle", QUATERNION_BATCH, new Benchmark() {
+
+      @Override public long run() {
+        final Quaternion q = new Quaternion();
+        float angle = 0.0f;
+        for (int i = 0; i < QUATERNION_BATCH; ++i) {
+          angle += q.setAxisAngle(v, angle + 0.001f).w;
+        }
+        return Float.floatToIntBits(angle);
+      }
+    });
+    measure(filter, "quaternion.transform", QUATERNION_BATCH, new Benchmark() {
+
+      @Override public long run() {
+        PVector out = v;
+        for (int i = 0; i < QUATERNION_BATCH; ++i) {
+          out = a.transform(out);
+        }
+        return Float.floatToIntBits(out.x);
+      }
+    });
+    measure(filter, "quaternion.transformInto", QUATERNION_BATCH, new Benchmark() {
+
+      @Override public long run() {
+        final PVector out = v.get();
+        for (int i = 0; i < QUATERNION_BATCH; ++i) {
+          a.transformInto(out, out);
+        }
+        return Float.floatToIntBits(out.x);
+      }
+    });
+    measure(filter, "quaternion.rotateInto", QUATERNION_BATCH, new Benchmark() {
+
+      @Override public long run() {
+        final PVector out = v.get();
+        for (int i = 0; i < QUATERNION_BATCH; ++i) {
+          a.rotateInto(out, out);
+        }
+        return Float.floatToIntBits(out.x);
+      }
+    });
+  }
+
+  private static void measure(final String filter, final String name,
+      final long operationsPerRun, final Benchmark benchmark) {
+    if (!name.contains(filter)) {
+      return;
+    }
+    final long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+    while (System.nanoTime() < warmupEnd) {
+      if (benchmark instanceof SetupBenchmark) {
+        ((SetupBenchmark) benchmark).setup();
+      }
+      sink += benchmark.run();
+    }
+    long runs = 0;
+    long elapsed = 0;
+    long bytes = 0;
+    if (benchmark instanceof SetupBenchmark) {
+      do {
+        ((SetupBenchmark) benchmark).setup();
+        final long bytes0 = allocatedBytes();
+        final long start = System.nanoTime();
+        sink += benchmark.run();
+        elapsed += System.nanoTime() - start;
+        bytes += allocatedBytes() - bytes0;
+        ++runs;
+      } while (elapsed < MEASUREMENT_NANOS);
+    } else {
+      final long bytes0 = allocatedBytes();
+      final long start = System.nanoTime();
+      do {
+        sink += benchmark.run();
+        ++runs;
+        elapsed = System.nanoTime() - start;
+      } while (elapsed < MEASUREMENT_NANOS);
+      bytes = allocatedBytes() - bytes0;
+    }
+    final double operations = (double) runs * operationsPerRun;
+    System.out.printf("%-48s %14.2f %14.2f %14.2f%n", name, elapsed / operations,
+        bytes / operations, bytes / (elapsed / 1.0e9) / (1024.0 * 1024.0));
+  }
+
+  /**
+   * Returns the bytes allocated so far by every live thread, so that work handed to pool workers
+   * counts too.
+   */
+  private static long allocatedBytes() {
+    final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    if (threads instanceof com.sun.management.ThreadMXBean) {
+      long total = 0;
+      for (final long bytes : ((com.sun.management.ThreadMXBean) threads)
+          .getThreadAllocatedBytes(threads.getAllThreadIds())) {
+        total += Math.max(0, bytes);
+      }
+      return total;
+    }
+    return 0;
+  }
+}
@@ -0,0 +1,219 @@
+package lparticlesystem;
+
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import com.google.common.hash.HashCode;
+
+/**
+ * Precompiled derived symbol streams and interpreted trees on disk, keyed by a hash of everything
+ * they depend on. Files are read through memory-mapped channels in native byte order: symbol
+ * streams are consumed straight from the mapping, and tree columns are bulk-copied out of it.
+ * The directory is kept under a total size by deleting the least recently used files.
+ */
+class BinaryCache {
+
+  private static final int SYMBOLS_MAGIC = 0x4c505359;
+  private static final int TREE_MAGIC = 0x4c505452;
+  private static final int VERSION = 1;
+  private static final int KEY_BYTES = 16;
+  private static final int HEADER_BYTES = 32;
+  private static final String SYMBOLS = "symbols";
+  private static final String TREE = "tree";
+  private static final String TEMPORARY = "tmp";
+  // Temporary files older than this were left by a writer that died, not one still writing.
+  private static final long STALE_TEMPORARY_MILLIS = 10 * 60 * 1000;
+
+  public static final long DEFAULT_MAX_BYTES = 1L << 30;
+
+  /**
+   * Returns a cache in the directory named by {@code lparticlesystem.cacheDirectory}, holding at
+   * most {@code lparticlesystem.cacheBytes}, or null if no directory is set.
+   */
+  public static BinaryCache fromSystemProperties() {
+    final String directory = System.getProperty("lparticlesystem.cacheDirectory", "");
+    return directory.isEmpty() ? null : new BinaryCache(new File(directory),
+        Long.getLong("lparticlesystem.cacheBytes", DEFAULT_MAX_BYTES));
+  }
+
+  private final File directory;
+  private final long maxBytes;
+
+  public BinaryCache(final File directory, final long maxBytes) {
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  public CharBuffer loadSymbols(final HashCode key) {
+    final ByteBuffer buffer = map(file(key, SYMBOLS), SYMBOLS_MAGIC, key);
+    if (null == buffer) {
+      return null;
+    }
+    final long length = buffer.getLong();
+    if (buffer.capacity() != HEADER_BYTES + 2 * length) {
+      return null;
+    }
+    buffer.position(HEADER_BYTES);
+    return buffer.slice().order(ByteOrder.nativeOrder()).asCharBuffer();
+  }
+
+  public void storeSymbols(final HashCode key, final char[] symbols) {
+    final long bytes = HEADER_BYTES + 2L * symbols.length;
+    if (bytes > Integer.MAX_VALUE || bytes > maxBytes) {
+      return;
+    }
+    final ByteBuffer buffer = header((int) bytes, SYMBOLS_MAGIC, key);
+    buffer.putLong(symbols.length);
+    buffer.position(HEADER_BYTES);
+    buffer.asCharBuffer().put(symbols);
+    buffer.position(buffer.capacity());
+    write(file(key, SYMBOLS), buffer);
+  }
+
+  public Tree loadTree(final HashCode key) {
+    final ByteBuffer buffer = map(file(key, TREE), TREE_MAGIC, key);
+    if (null == buffer) {
+      return null;
+    }
+    final int size = buffer.getInt();
+    if (buffer.capacity() != HEADER_BYTES + Tree.bytes(size)) {
+      return null;
+    }
+    buffer.position(HEADER_BYTES);
+    return Tree.read(buffer, size);
+  }
+
+  public void storeTree(final HashCode key, final Tree tree) {
+    final long bytes = HEADER_BYTES + Tree.bytes(tree.size());
+    if (bytes > Integer.MAX_VALUE || bytes > maxBytes) {
+      return;
+    }
+    final ByteBuffer buffer = header((int) bytes, TREE_MAGIC, key);
+    buffer.putInt(tree.size());
+    buffer.position(HEADER_BYTES);
+    tree.write(buffer);
+    write(file(key, TREE), buffer);
+  }
+
+  private File file(final HashCode key, final String extension) {
+    return new File(directory, key + "." + extension);
+  }
+
+  private static ByteBuffer header(final int bytes, final int magic, final HashCode key) {
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(bytes).order(ByteOrder.nativeOrder());
+    buffer.putInt(magic);
+    buffer.putInt(VERSION);
+    buffer.put(key.asBytes(), 0, KEY_BYTES);
+    return buffer;
+  }
+
+  private static ByteBuffer map(final File file, final int magic, final HashCode key) {
+    if (!file.isFile()) {
+      return null;
+    }
+    try (final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+      if (channel.size() < HEADER_BYTES || channel.size() > Integer.MAX_VALUE) {
+        return null;
+      }
+      final MappedByteBuffer buffer = channel.map(MapMode.READ_ONLY, 0, channel.size());
+      buffer.order(ByteOrder.nativeOrder());
+      if (magic != buffer.getInt() || VERSION != buffer.getInt()) {
+        return null;
+      }
+      final byte[] stored = new byte[KEY_BYTES];
+      buffer.get(stored);
+      if (!HashCode.fromBytes(stored).equals(key)) {
+        return null;
+      }
+      file.setLastModified(System.currentTimeMillis());
+      return buffer;
+    } catch (final IOException e) {
+      return null;
+    }
+  }
+
+  private void write(final File file, final ByteBuffer buffer) {
+    buffer.flip();
+    Path temporary = null;
+    try {
+      Files.createDirectories(directory.toPath());
+      temporary = Files.createTempFile(directory.toPath(), file.getName(), "." + TEMPORARY);
+      try (final FileChannel channel = FileChannel.open(temporary, StandardOpenOption.WRITE)) {
+        while (buffer.hasRemaining()) {
+          channel.write(buffer);
+        }
+      }
+      Files.move(temporary, file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      temporary = null;
+    } catch (final IOException e) {
+      System.err.printf("Could not write %s: %s%n", file, e);
+    } finally {
+      if (null != temporary) {
+        temporary.toFile().delete();
+      }
+    }
+    evict(file);
+  }
+
+  /**
+   * Deletes stale temporary files, then the least recently used cache files other than
+   * {@code keep} until the directory fits in {@code maxBytes}. Files that are not ours are never
+   * touched.
+   */
+  private void evict(final File keep) {
+    final File[] listed = directory.listFiles(new FilenameFilter() {
+
+      @Override public boolean accept(final File dir, final String name) {
+        return name.endsWith("." + SYMBOLS) || name.endsWith("." + TREE)
+            || name.endsWith("." + TEMPORARY)
+            && (name.contains("." + SYMBOLS) || name.contains("." + TREE));
+      }
+    });
+    if (null == listed) {
+      return;
+    }
+    final long stale = System.currentTimeMillis() - STALE_TEMPORARY_MILLIS;
+    final List<File> files = new ArrayList<>();
+    long total = 0;
+    for (final File file : listed) {
+      if (file.getName().endsWith("." + TEMPORARY) && file.lastModified() < stale
+          && file.delete()) {
+        continue;
+      }
+      files.add(file);
+      total += file.length();
+    }
+    Collections.sort(files, new Comparator<File>() {
+
+      @Override public int compare(final File a, final File b) {
+        return Long.compare(a.lastModified(), b.lastModified());
+      }
+    });
+    // Temporary files still being written are counted but left to their writers.
+    for (int i = 0; i < files.size() && total > maxBytes; ++i) {
+      final File file = files.get(i);
+      if (!file.equals(keep) && !file.getName().endsWith("." + TEMPORARY)) {
+        final long length = file.length();
+        if (file.delete()) {
+          total -= length;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,233 @@
+package lparticlesystem;
+
+/**
+ * A bounding volume hierarchy over the segments of a {@link Tree}, split at the median centroid
+ * along the longest axis. Nodes are stored depth-first, so a node's left child follows it and its
+ * right child is at {@code right[node]}. Each leaf covers a contiguous run of {@code order}, and
+ * every node keeps its longest segment as a coarse stand-in for everything beneath it.
+ */
+class Bvh {
+
+  public static final int LEAF_SIZE = 256;
+
+  private static final int MAX_DEPTH = 64;
+
+  public final int[] order;
+  public final int[] first;
+  public final int[] last;
+  public final int[] right;
+  public final int[] leaf;
+  public final int[] representative;
+  public final float[] bounds;
+  private final int nodes;
+  private final int leaves;
+
+  public Bvh(final Tree tree) {
+    final int n = tree.size();
+    final int capacity = 4 * (n / LEAF_SIZE + 1);
+    order = new int[n];
+    first = new int[capacity];
+    last = new int[capacity];
+    right = new int[capacity];
+    leaf = new int[capacity];
+    representative = new int[capacity];
+    bounds = new float[6 * capacity];
+    final float[][] centroids = new float[3][n];
+    for (int i = 0; i < n; ++i) {
+      order[i] = i;
+      centroids[0][i] = 0.5f * (tree.x0[i] + tree.x1[i]);
+      centroids[1][i] = 0.5f * (tree.y0[i] + tree.y1[i]);
+      centroids[2][i] = 0.5f * (tree.z0[i] + tree.z1[i]);
+    }
+    final int[] counts = new int[2];
+    split(tree, centroids, 0, n, counts);
+    nodes = counts[0];
+    leaves = counts[1];
+  }
+
+  /**
+   * Creates a hierarchy with the structure of {@code template} and the bounds of {@code tree},
+   * which must share its topology.
+   */
+  public Bvh(final Bvh template, final Tree tree) {
+    order = template.order;
+    first = template.first;
+    last = template.last;
+    right = template.right;
+    leaf = template.leaf;
+    nodes = template.nodes;
+    leaves = template.leaves;
+    bounds = new float[template.bounds.length];
+    representative = new int[template.representative.length];
+    for (int node = nodes - 1; node >= 0; --node) {
+      if (-1 == leaf[node]) {
+        union(tree, node, node + 1, right[node]);
+      } else {
+        fit(tree, node);
+      }
+    }
+  }
+
+  public int nodes() {
+    return nodes;
+  }
+
+  public int leaves() {
+    return leaves;
+  }
+
+  /**
+   * Writes the node of every leaf at least partly inside {@code frustum} into {@code visible} and
+   * returns how many there are. When {@code minPixels} is positive, any node whose projection is
+   * smaller than that is written instead as its complement, {@code ~node}, to be drawn as its
+   * representative segment.
+   */
+  public int cull(final Frustum frustum, final float minPixels, final int[] visible) {
+    if (0 == nodes) {
+      return 0;
+    }
+    final int[] stack = new int[MAX_DEPTH];
+    final boolean[] contained = new boolean[MAX_DEPTH];
+    int top = 0;
+    int count = 0;
+    stack[top] = 0;
+    contained[top++] = false;
+    while (top > 0) {
+      final int node = stack[--top];
+      boolean inside = contained[top];
+      final int i = 6 * node;
+      if (!inside) {
+        final int side = frustum.classify(bounds[i], bounds[i + 1], bounds[i + 2],
+            bounds[i + 3], bounds[i + 4], bounds[i + 5]);
+        if (Frustum.OUTSIDE == side) {
+          continue;
+        }
+        inside = Frustum.INSIDE == side;
+      }
+      if (minPixels > 0.0f && frustum.projectedSize(bounds[i], bounds[i + 1], bounds[i + 2],
+          bounds[i + 3], bounds[i + 4], bounds[i + 5]) < minPixels) {
+        visible[count++] = ~node;
+      } else if (-1 != leaf[node]) {
+        visible[count++] = node;
+      } else {
+        stack[top] = right[node];
+        contained[top++] = inside;
+        stack[top] = node + 1;
+        contained[top++] = inside;
+      }
+    }
+    return count;
+  }
+
+  private int split(final Tree tree, final float[][] centroids, final int begin, final int end,
+      final int[] counts) {
+    final int node = counts[0]++;
+    first[node] = begin;
+    last[node] = end;
+    if (end - begin <= LEAF_SIZE) {
+      leaf[node] = counts[1]++;
+      fit(tree, node);
+      return node;
+    }
+    leaf[node] = -1;
+    final float[] axis = centroids[longestAxis(centroids, begin, end)];
+    final int middle = (begin + end) >>> 1;
+    select(axis, begin, end - 1, middle);
+    split(tree, centroids, begin, middle, counts);
+    right[node] = split(tree, centroids, middle, end, counts);
+    union(tree, node, node + 1, right[node]);
+    return node;
+  }
+
+  private int longestAxis(final float[][] centroids, final int begin, final int end) {
+    int longest = 0;
+    float extent = -1.0f;
+    for (int axis = 0; axis < centroids.length; ++axis) {
+      float minimum = Float.POSITIVE_INFINITY;
+      float maximum = Float.NEGATIVE_INFINITY;
+      for (int i = begin; i < end; ++i) {
+        minimum = Math.min(minimum, centroids[axis][order[i]]);
+        maximum = Math.max(maximum, centroids[axis][order[i]]);
+      }
+      if (maximum - minimum > extent) {
+        extent = maximum - minimum;
+        longest = axis;
+      }
+    }
+    return longest;
+  }
+
+  private void select(final float[] keys, int low, int high, final int k) {
+    while (low < high) {
+      final float pivot = keys[order[(low + high) >>> 1]];
+      int i = low;
+      int j = high;
+      while (i <= j) {
+        while (keys[order[i]] < pivot) {
+          ++i;
+        }
+        while (keys[order[j]] > pivot) {
+          --j;
+        }
+        if (i <= j) {
+          final int swap = order[i];
+          order[i++] = order[j];
+          order[j--] = swap;
+        }
+      }
+      if (k <= j) {
+        high = j;
+      } else if (k >= i) {
+        low = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+  private void fit(final Tree tree, final int node) {
+    float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+    float minZ = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+    float maxZ = Float.NEGATIVE_INFINITY;
+    int longest = order[first[node]];
+    for (int i = first[node]; i < last[node]; ++i) {
+      final int s = order[i];
+      if (lengthSquared(tree, s) > lengthSquared(tree, longest)) {
+        longest = s;
+      }
+      minX = Math.min(minX, Math.min(tree.x0[s], tree.x1[s]));
+      minY = Math.min(minY, Math.min(tree.y0[s], tree.y1[s]));
+      minZ = Math.min(minZ, Math.min(tree.z0[s], tree.z1[s]));
+      maxX = Math.max(maxX, Math.max(tree.x0[s], tree.x1[s]));
+      maxY = Math.max(maxY, Math.max(tree.y0[s], tree.y1[s]));
+      maxZ = Math.max(maxZ, Math.max(tree.z0[s], tree.z1[s]));
+    }
+    representative[node] = longest;
+    final int i = 6 * node;
+    bounds[i] = minX;
+    bounds[i + 1] = minY;
+    bounds[i + 2] = minZ;
+    bounds[i + 3] = maxX;
+    bounds[i + 4] = maxY;
+    bounds[i + 5] = maxZ;
+  }
+
+  private void union(final Tree tree, final int node, final int left, final int right) {
+    final int l = representative[left];
+    final int r = representative[right];
+    representative[node] = lengthSquared(tree, l) >= lengthSquared(tree, r) ? l : r;
+    final int i = 6 * node;
+    for (int j = 0; j < 3; ++j) {
+      bounds[i + j] = Math.min(bounds[6 * left + j], bounds[6 * right + j]);
+      bounds[i + 3 + j] = Math.max(bounds[6 * left + 3 + j], bounds[6 * right + 3 + j]);
+    }
+  }
+
+  private static float lengthSquared(final Tree tree, final int s) {
+    final float dx = tree.x1[s] - tree.x0[s];
+    final float dy = tree.y1[s] - tree.y0[s];
+    final float dz = tree.z1[s] - tree.z0[s];
+    return dx * dx + dy * dy + dz * dz;
+  }
+}
@@ -0,0 +1,124 @@
+package lparticlesystem;
+
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Per-phase frame timings and simulation counters, exported over JMX and drawn by the overlay in
+ * {@link LParticleSystem}.
+ */
+public class FrameStats implements FrameStatsMBean {
+
+  public enum Phase {
+    DERIVATION, TREE_BUILD, PARTICLE_UPDATE, BIRTH_DEATH, TREE_DRAW, PARTICLE_DRAW
+  }
+
+  private final Map<Phase, LatencyHistogram> histograms = new EnumMap<>(Phase.class);
+  private volatile long frames = 0;
+  private volatile int liveParticles = 0;
+  private volatile int births = 0;
+  private volatile int deaths = 0;
+  private volatile long totalBirths = 0;
+  private volatile long totalDeaths = 0;
+  private volatile int treeNodes = 0;
+  private volatile long derivedLength = 0;
+
+  public FrameStats() {
+    for (final Phase phase : Phase.values()) {
+      histograms.put(phase, new LatencyHistogram());
+    }
+  }
+
+  public void record(final Phase phase, final long nanos) {
+    histograms.get(phase).record(nanos);
+  }
+
+  public void step(final int liveParticles, final int births, final int deaths) {
+    this.liveParticles = liveParticles;
+    this.births = births;
+    this.deaths = deaths;
+    totalBirths += births;
+    totalDeaths += deaths;
+    ++frames;
+  }
+
+  public void tree(final int treeNodes, final long derivedLength) {
+    this.treeNodes = treeNodes;
+    this.derivedLength = derivedLength;
+  }
+
+  @Override public long getFrames() {
+    return frames;
+  }
+
+  @Override public int getLiveParticles() {
+    return liveParticles;
+  }
+
+  @Override public int getBirthsLastFrame() {
+    return births;
+  }
+
+  @Override public int getDeathsLastFrame() {
+    return deaths;
+  }
+
+  @Override public long getTotalBirths() {
+    return totalBirths;
+  }
+
+  @Override public long getTotalDeaths() {
+    return totalDeaths;
+  }
+
+  @Override public int getTreeNodes() {
+    return treeNodes;
+  }
+
+  @Override public long getDerivedLength() {
+    return derivedLength;
+  }
+
+  @Override public String[] getPhases() {
+    final Phase[] phases = Phase.values();
+    final String[] names = new String[phases.length];
+    for (int i = 0; i < phases.length; ++i) {
+      names[i] = phases[i].name();
+    }
+    return names;
+  }
+
+  @Override public double getMeanMicros(final String phase) {
+    return histograms.get(Phase.valueOf(phase)).getMean() / 1000.0;
+  }
+
+  @Override public double getPercentileMicros(final String phase, final double percentile) {
+    return histograms.get(Phase.valueOf(phase)).getPercentile(percentile) / 1000.0;
+  }
+
+  @Override public double getMaxMicros(final String phase) {
+    return histograms.get(Phase.valueOf(phase)).getMaximum() / 1000.0;
+  }
+
+  @Override public String getSummary() {
+    final StringBuilder builder = new StringBuilder();
+    builder.append(String.format("frames %d  particles %d  +%d -%d  nodes %d  symbols %d%n",
+        frames, liveParticles, births, deaths, treeNodes, derivedLength));
+    for (final Phase phase : Phase.values()) {
+      final LatencyHistogram histogram = histograms.get(phase);
+      builder.append(String.format("%-16s n %6d  p50 %9.1fus  p99 %9.1fus  max %9.1fus%n",
+          phase, histogram.getCount(), histogram.getPercentile(50.0) / 1000.0,
+          histogram.getPercentile(99.0) / 1000.0, histogram.getMaximum() / 1000.0));
+    }
+    return builder.toString();
+  }
+
+  @Override public void reset() {
+    for (final LatencyHistogram histogram : histograms.values()) {
+      histogram.reset();
+    }
+    frames = 0;
+    totalBirths = 0;
+    totalDeaths = 0;
+  }
+}
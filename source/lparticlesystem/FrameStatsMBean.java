@@ -0,0 +1,32 @@
+package lparticlesystem;
+
+public interface FrameStatsMBean {
+
+  long getFrames();
+
+  int getLiveParticles();
+
+  int getBirthsLastFrame();
+
+  int getDeathsLastFrame();
+
+  long getTotalBirths();
+
+  long getTotalDeaths();
+
+  int getTreeNodes();
+
+  long getDerivedLength();
+
+  String[] getPhases();
+
+  double getMeanMicros(String phase);
+
+  double getPercentileMicros(String phase, double percentile);
+
+  double getMaxMicros(String phase);
+
+  String getSummary();
+
+  void reset();
+}
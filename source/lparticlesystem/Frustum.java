@@ -0,0 +1,104 @@
+package lparticlesystem;
+
+import processing.core.PVector;
+
+/**
+ * A perspective view volume as six inward-facing planes, for culling boxes and points in world
+ * space.
+ */
+class Frustum {
+
+  public static final int OUTSIDE = 0;
+  public static final int INTERSECTS = 1;
+  public static final int INSIDE = 2;
+
+  private static final int PLANES = 6;
+
+  private final float[] nx = new float[PLANES];
+  private final float[] ny = new float[PLANES];
+  private final float[] nz = new float[PLANES];
+  private final float[] d = new float[PLANES];
+  private final PVector eye = new PVector();
+  private float near;
+  private float pixelsPerUnit = 0.0f;
+
+  /**
+   * Sets the volume seen from {@code eye} along the unit {@code forward}, {@code right} and
+   * {@code up} directions with a vertical field of view of {@code fovy} radians.
+   */
+  public Frustum set(final PVector eye, final PVector forward, final PVector right,
+      final PVector up, final float fovy, final float aspect, final float near, final float far) {
+    final float tanY = (float) Math.tan(fovy / 2.0f);
+    this.eye.set(eye);
+    this.near = near;
+    final float tanX = tanY * aspect;
+    plane(0, forward.x * tanX - right.x, forward.y * tanX - right.y, forward.z * tanX - right.z,
+        eye, 0.0f);
+    plane(1, forward.x * tanX + right.x, forward.y * tanX + right.y, forward.z * tanX + right.z,
+        eye, 0.0f);
+    plane(2, forward.x * tanY - up.x, forward.y * tanY - up.y, forward.z * tanY - up.z, eye, 0.0f);
+    plane(3, forward.x * tanY + up.x, forward.y * tanY + up.y, forward.z * tanY + up.z, eye, 0.0f);
+    plane(4, forward.x, forward.y, forward.z, eye, near);
+    plane(5, -forward.x, -forward.y, -forward.z, eye, -far);
+    return this;
+  }
+
+  /**
+   * Sets the height of the viewport in pixels, so that {@link #projectedSize} can measure boxes on
+   * screen.
+   */
+  public Frustum setViewport(final float height, final float fovy) {
+    pixelsPerUnit = height / 2.0f / (float) Math.tan(fovy / 2.0f);
+    return this;
+  }
+
+  /**
+   * Returns an upper bound on the size in pixels of a box's projection, from its diagonal and the
+   * distance from the eye to its nearest possible point.
+   */
+  public float projectedSize(final float minX, final float minY, final float minZ,
+      final float maxX, final float maxY, final float maxZ) {
+    final float dx = maxX - minX, dy = maxY - minY, dz = maxZ - minZ;
+    final float diagonal = (float) Math.sqrt(dx * dx + dy * dy + dz * dz);
+    final float cx = 0.5f * (minX + maxX) - eye.x;
+    final float cy = 0.5f * (minY + maxY) - eye.y;
+    final float cz = 0.5f * (minZ + maxZ) - eye.z;
+    final float distance = (float) Math.sqrt(cx * cx + cy * cy + cz * cz) - 0.5f * diagonal;
+    return diagonal * pixelsPerUnit / Math.max(near, distance);
+  }
+
+  public int classify(final float minX, final float minY, final float minZ,
+      final float maxX, final float maxY, final float maxZ) {
+    int result = INSIDE;
+    for (int i = 0; i < PLANES; ++i) {
+      final float farthest = nx[i] * (nx[i] > 0.0f ? maxX : minX)
+          + ny[i] * (ny[i] > 0.0f ? maxY : minY) + nz[i] * (nz[i] > 0.0f ? maxZ : minZ) + d[i];
+      if (farthest < 0.0f) {
+        return OUTSIDE;
+      }
+      final float nearest = nx[i] * (nx[i] > 0.0f ? minX : maxX)
+          + ny[i] * (ny[i] > 0.0f ? minY : maxY) + nz[i] * (nz[i] > 0.0f ? minZ : maxZ) + d[i];
+      if (nearest < 0.0f) {
+        result = INTERSECTS;
+      }
+    }
+    return result;
+  }
+
+  public boolean contains(final float x, final float y, final float z) {
+    for (int i = 0; i < PLANES; ++i) {
+      if (nx[i] * x + ny[i] * y + nz[i] * z + d[i] < 0.0f) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  private void plane(final int i, final float x, final float y, final float z, final PVector eye,
+      final float offset) {
+    nx[i] = x;
+    ny[i] = y;
+    nz[i] = z;
+    d[i] = -(x * eye.x + y * eye.y + z * eye.z) - offset;
+  }
+}
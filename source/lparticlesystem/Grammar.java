@@ -0,0 +1,347 @@
+package lparticlesystem;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.RecursiveAction;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.Hasher;
+
+/**
+ * An L-system compiled into a dense production table indexed by symbol.
+ */
+class Grammar {
+
+  public static final int MAX_LENGTH = Integer.MAX_VALUE - 8;
+
+  private static final int CHUNK_SIZE = 1 << 16;
+  private static final int MIN_PARALLEL_LENGTH = 2 * CHUNK_SIZE;
+
+  public static Grammar compile(final String start, final Map<String, String> rules) {
+    final StringBuilder symbols = new StringBuilder(start);
+    for (final Entry<String, String> rule : rules.entrySet()) {
+      symbols.append(rule.getKey()).append(rule.getValue());
+    }
+    char maximum = 0;
+    for (int i = 0; i < symbols.length(); ++i) {
+      maximum = (char) Math.max(maximum, symbols.charAt(i));
+    }
+    final char[][] productions = new char[maximum + 1][];
+    for (final Entry<String, String> rule : rules.entrySet()) {
+      if (1 == rule.getKey().length()) {
+        productions[rule.getKey().charAt(0)] = rule.getValue().toCharArray();
+      }
+    }
+    final int[] indices = new int[maximum + 1];
+    Arrays.fill(indices, -1);
+    final StringBuilder alphabet = new StringBuilder();
+    for (int i = 0; i < symbols.length(); ++i) {
+      final char symbol = symbols.charAt(i);
+      if (-1 == indices[symbol]) {
+        indices[symbol] = alphabet.length();
+        alphabet.append(symbol);
+      }
+    }
+    return new Grammar(start.toCharArray(), productions, alphabet.toString().toCharArray(), indices);
+  }
+
+  private final char[] start;
+  private final char[][] productions;
+  private final char[] alphabet;
+  private final int[] indices;
+  private final long[][] growth;
+
+  private Grammar(final char[] start, final char[][] productions,
+      final char[] alphabet, final int[] indices) {
+    this.start = start;
+    this.productions = productions;
+    this.alphabet = alphabet;
+    this.indices = indices;
+    growth = new long[alphabet.length][alphabet.length];
+    for (int i = 0; i < alphabet.length; ++i) {
+      final char[] production = productions[alphabet[i]];
+      if (null == production) {
+        growth[i][i] = 1;
+      } else {
+        for (final char symbol : production) {
+          ++growth[i][indices[symbol]];
+        }
+      }
+    }
+  }
+
+  public char[] start() {
+    return start;
+  }
+
+  public char[] production(final char symbol) {
+    return symbol < productions.length ? productions[symbol] : null;
+  }
+
+  public Hasher hashInto(final Hasher hasher) {
+    hasher.putInt(start.length);
+    for (final char symbol : start) {
+      hasher.putChar(symbol);
+    }
+    for (final char symbol : alphabet) {
+      final char[] production = productions[symbol];
+      hasher.putChar(symbol).putInt(null == production ? -1 : production.length);
+      if (null != production) {
+        for (final char replacement : production) {
+          hasher.putChar(replacement);
+        }
+      }
+    }
+    return hasher;
+  }
+
+  public char[] alphabet() {
+    return alphabet;
+  }
+
+  public Rope rope(final int iterations) {
+    return new Rope(this, iterations);
+  }
+
+  public SymbolIterator iterator(final int iterations) {
+    return rope(iterations).iterator();
+  }
+
+  public long length(final int iterations) {
+    return finalLength(predict(iterations));
+  }
+
+  public long count(final char symbol, final int iterations) {
+    if (symbol >= indices.length || -1 == indices[symbol] || null != productions[symbol]) {
+      return 0;
+    }
+    return predict(iterations)[indices[symbol]];
+  }
+
+  public ImmutableMap<Character, Long> counts(final int iterations) {
+    final long[] counts = predict(iterations);
+    final ImmutableMap.Builder<Character, Long> builder = ImmutableMap.builder();
+    for (int i = 0; i < alphabet.length; ++i) {
+      if (null == productions[alphabet[i]] && counts[i] > 0) {
+        builder.put(alphabet[i], counts[i]);
+      }
+    }
+    return builder.build();
+  }
+
+  public char[] derive(final int iterations) {
+    return derive(iterations, false);
+  }
+
+  /**
+   * Returns whether {@code derive(iterations, true)} rewrites any generation in parallel, which
+   * it does only once the last word it rewrites is long enough to split.
+   */
+  boolean derivesInParallel(final int iterations) {
+    long length = 0;
+    for (final long count : predict(iterations)) {
+      length = saturatedAdd(length, count);
+    }
+    return length >= MIN_PARALLEL_LENGTH;
+  }
+
+  /**
+   * Rewrites the start word {@code iterations} times. In parallel, each generation is split into
+   * chunks whose output lengths are counted concurrently, prefix-summed into write offsets, and then
+   * expanded concurrently into the shared output array. Between chunks it checks whether the
+   * calling thread has been interrupted, and if so stops with a {@link CancellationException}.
+   */
+  public char[] derive(final int iterations, final boolean parallel) {
+    final Thread caller = Thread.currentThread();
+    long[] counts = initialCounts();
+    char[] current = start;
+    for (int i = 0; i <= iterations; ++i) {
+      final boolean last = i == iterations;
+      final long length = last ? finalLength(counts) : rewrittenLength(counts);
+      Preconditions.checkState(length <= MAX_LENGTH,
+          "Derived length %s exceeds the maximum array size", length);
+      final char[] next = new char[(int) length];
+      if (parallel && current.length >= MIN_PARALLEL_LENGTH) {
+        final int chunks = (current.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        final int[] offsets = new int[chunks + 1];
+        Workers.POOL.invoke(new Rewrite(caller, current, null, last, offsets, 0, chunks));
+        for (int j = 0; j < chunks; ++j) {
+          offsets[j + 1] += offsets[j];
+        }
+        Workers.POOL.invoke(new Rewrite(caller, current, next, last, offsets, 0, chunks));
+      } else {
+        int offset = 0;
+        for (int begin = 0; begin < current.length; begin += CHUNK_SIZE) {
+          checkNotInterrupted(caller);
+          offset += rewrite(current, begin, Math.min(begin + CHUNK_SIZE, current.length), next,
+              offset, last);
+        }
+      }
+      current = next;
+      if (!last) {
+        counts = times(counts, growth);
+      }
+    }
+    return current;
+  }
+
+  /**
+   * Throws a {@link CancellationException} if {@code thread}, which started a long computation
+   * that may run on other threads, has been interrupted.
+   */
+  static void checkNotInterrupted(final Thread thread) {
+    if (thread.isInterrupted()) {
+      throw new CancellationException(thread.getName() + " was interrupted");
+    }
+  }
+
+  private int rewrite(final char[] current, final int begin, final int end,
+      final char[] next, final int offset, final boolean last) {
+    int n = offset;
+    for (int i = begin; i < end; ++i) {
+      final char symbol = current[i];
+      final char[] production = productions[symbol];
+      if (null == production) {
+        next[n++] = symbol;
+      } else if (!last) {
+        System.arraycopy(production, 0, next, n, production.length);
+        n += production.length;
+      }
+    }
+    return n - offset;
+  }
+
+  private int outputLength(final char[] current, final int begin, final int end,
+      final boolean last) {
+    int n = 0;
+    for (int i = begin; i < end; ++i) {
+      final char[] production = productions[current[i]];
+      if (null == production) {
+        ++n;
+      } else if (!last) {
+        n += production.length;
+      }
+    }
+    return n;
+  }
+
+  /**
+   * Counts the output length of a range of chunks into {@code offsets[chunk + 1]} when
+   * {@code next} is null, and otherwise expands them at the already summed offsets.
+   */
+  @SuppressWarnings("serial")
+  private class Rewrite extends RecursiveAction {
+    private final Thread caller;
+    private final char[] current;
+    private final char[] next;
+    private final boolean last;
+    private final int[] offsets;
+    private final int begin;
+    private final int end;
+
+    public Rewrite(final Thread caller, final char[] current, final char[] next,
+        final boolean last, final int[] offsets, final int begin, final int end) {
+      this.caller = caller;
+      this.current = current;
+      this.next = next;
+      this.last = last;
+      this.offsets = offsets;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override protected void compute() {
+      if (end - begin > 1) {
+        final int middle = (begin + end) >>> 1;
+        invokeAll(new Rewrite(caller, current, next, last, offsets, begin, middle),
+            new Rewrite(caller, current, next, last, offsets, middle, end));
+      } else {
+        checkNotInterrupted(caller);
+        final int first = begin * CHUNK_SIZE;
+        final int limit = Math.min(first + CHUNK_SIZE, current.length);
+        if (null == next) {
+          offsets[begin + 1] = outputLength(current, first, limit, last);
+        } else {
+          rewrite(current, first, limit, next, offsets[begin], last);
+        }
+      }
+    }
+  }
+
+  private long[] initialCounts() {
+    final long[] counts = new long[alphabet.length];
+    for (final char symbol : start) {
+      ++counts[indices[symbol]];
+    }
+    return counts;
+  }
+
+  private long[] predict(final int iterations) {
+    long[] counts = initialCounts();
+    long[][] power = growth;
+    for (int i = iterations; i > 0; i >>= 1) {
+      if (1 == (i & 1)) {
+        counts = times(counts, power);
+      }
+      if (i > 1) {
+        power = times(power, power);
+      }
+    }
+    return counts;
+  }
+
+  private static long[] times(final long[] vector, final long[][] matrix) {
+    final long[] result = new long[vector.length];
+    for (int i = 0; i < vector.length; ++i) {
+      if (0 != vector[i]) {
+        for (int j = 0; j < vector.length; ++j) {
+          result[j] = saturatedAdd(result[j], saturatedMultiply(vector[i], matrix[i][j]));
+        }
+      }
+    }
+    return result;
+  }
+
+  private static long[][] times(final long[][] left, final long[][] right) {
+    final long[][] result = new long[left.length][];
+    for (int i = 0; i < left.length; ++i) {
+      result[i] = times(left[i], right);
+    }
+    return result;
+  }
+
+  static long saturatedAdd(final long a, final long b) {
+    final long sum = a + b;
+    return sum < 0 ? Long.MAX_VALUE : sum;
+  }
+
+  private static long saturatedMultiply(final long a, final long b) {
+    if (0 == a || 0 == b) {
+      return 0;
+    }
+    return a > Long.MAX_VALUE / b ? Long.MAX_VALUE : a * b;
+  }
+
+  private long rewrittenLength(final long[] counts) {
+    long length = 0;
+    for (int i = 0; i < alphabet.length; ++i) {
+      final char[] production = productions[alphabet[i]];
+      length = saturatedAdd(length,
+          saturatedMultiply(counts[i], null == production ? 1 : production.length));
+    }
+    return length;
+  }
+
+  private long finalLength(final long[] counts) {
+    long length = 0;
+    for (int i = 0; i < alphabet.length; ++i) {
+      if (null == productions[alphabet[i]]) {
+        length = saturatedAdd(length, counts[i]);
+      }
+    }
+    return length;
+  }
+}
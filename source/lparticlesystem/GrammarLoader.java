@@ -0,0 +1,136 @@
+package lparticlesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Loads, derives and interprets grammars on a background thread and hands finished systems to
+ * the render thread through {@link #latest}. A newer load cancels any older one still in flight by
+ * interrupting it, which derivation and interpretation notice within a chunk of symbols, and
+ * watching a grammar reloads it whenever its file changes.
+ */
+class GrammarLoader {
+
+  private final ExecutorService loader = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("grammar-loader").setDaemon(true).build());
+  private final ExecutorService watcher = Executors.newSingleThreadExecutor(
+      new ThreadFactoryBuilder().setNameFormat("grammar-watcher").setDaemon(true).build());
+  private volatile LSystem latest = null;
+  private long generation = 0;
+  private Future<?> pending = null;
+  private WatchService watchService = null;
+
+  public LSystem latest() {
+    return latest;
+  }
+
+  public synchronized void load(final File file) {
+    final long loading = ++generation;
+    if (null != pending) {
+      pending.cancel(true);
+    }
+    pending = loader.submit(new Runnable() {
+
+      @Override public void run() {
+        final long start = System.nanoTime();
+        final LSystem lsystem;
+        try {
+          lsystem = LSystem.load(file);
+          if (Thread.currentThread().isInterrupted()) {
+            return;
+          }
+          lsystem.prepare();
+        } catch (final CancellationException e) {
+          return;
+        } catch (final Throwable e) {
+          System.err.printf("Could not load %s: %s%n", file, e);
+          return;
+        }
+        if (publish(loading, lsystem)) {
+          System.err.printf("Loaded %s in %.3fs%n",
+              null == file ? "the default grammar" : file.getName(),
+              (System.nanoTime() - start) / 1.0e9);
+        }
+      }
+    });
+  }
+
+  /**
+   * Reloads {@code file} whenever it is created or modified in its directory.
+   */
+  public synchronized void watch(final File file) {
+    if (null != watchService || null == file) {
+      return;
+    }
+    final Path directory = file.getAbsoluteFile().getParentFile().toPath();
+    final Path name = file.toPath().getFileName();
+    try {
+      watchService = FileSystems.getDefault().newWatchService();
+      directory.register(watchService,
+          StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+    } catch (final Throwable rethrown) {
+      throw Throwables.propagate(rethrown);
+    }
+    final WatchService service = watchService;
+    watcher.execute(new Runnable() {
+
+      @Override public void run() {
+        try {
+          while (true) {
+            final WatchKey key = service.take();
+            boolean changed = false;
+            for (final WatchEvent<?> event : key.pollEvents()) {
+              changed |= StandardWatchEventKinds.OVERFLOW == event.kind()
+                  || name.equals(event.context());
+            }
+            if (changed) {
+              load(file);
+            }
+            if (!key.reset()) {
+              return;
+            }
+          }
+        } catch (final InterruptedException | ClosedWatchServiceException e) {
+          return;
+        }
+      }
+    });
+  }
+
+  public synchronized void close() {
+    if (null != pending) {
+      pending.cancel(true);
+    }
+    if (null != watchService) {
+      try {
+        watchService.close();
+      } catch (final IOException e) {
+        System.err.printf("Could not close the grammar watcher: %s%n", e);
+      }
+    }
+    loader.shutdownNow();
+    watcher.shutdownNow();
+  }
+
+  private synchronized boolean publish(final long loaded, final LSystem lsystem) {
+    if (loaded != generation) {
+      return false;
+    }
+    latest = lsystem;
+    return true;
+  }
+}
@@ -0,0 +1,112 @@
+package lparticlesystem;
+
+import java.io.File;
+import java.util.Random;
+
+/**
+ * Loads a grammar and advances its particles for a fixed number of fixed-size steps, without a
+ * display.
+ */
+public class HeadlessSimulation {
+
+  private static final String USAGE = "usage: HeadlessSimulation <grammar.json> [--steps N]"
+      + " [--dt SECONDS] [--seed N] [--particles N] [--spread UNITS] [--angle-mod F]"
+      + " [--grow-mod F] [--parallel] [--stats] [--record FILE] [--quantum UNITS]"
+      + " [--keyframe-interval N]";
+
+  public static void main(final String[] arguments) {
+    if (0 == arguments.length) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    final File file = new File(arguments[0]);
+    int steps = 600;
+    float dt = 1.0f / 60.0f;
+    long seed = 0;
+    int count = 1;
+    float spread = 0.0f;
+    float angleMod = 1.0f;
+    float growMod = 1.0f;
+    boolean parallel = false;
+    FrameStats stats = null;
+    File recording = null;
+    float quantum = 0.0f;
+    int keyframeInterval = Recorder.DEFAULT_KEYFRAME_INTERVAL;
+    for (int i = 1; i < arguments.length; ++i) {
+      switch (arguments[i]) {
+        case "--steps":
+          steps = Integer.parseInt(arguments[++i]);
+          break;
+        case "--dt":
+          dt = Float.parseFloat(arguments[++i]);
+          break;
+        case "--seed":
+          seed = Long.parseLong(arguments[++i]);
+          break;
+        case "--particles":
+          count = Integer.parseInt(arguments[++i]);
+          break;
+        case "--spread":
+          spread = Float.parseFloat(arguments[++i]);
+          break;
+        case "--angle-mod":
+          angleMod = Float.parseFloat(arguments[++i]);
+          break;
+        case "--grow-mod":
+          growMod = Float.parseFloat(arguments[++i]);
+          break;
+        case "--parallel":
+          parallel = true;
+          break;
+        case "--stats":
+          stats = new FrameStats();
+          break;
+        case "--record":
+          recording = new File(arguments[++i]);
+          break;
+        case "--quantum":
+          quantum = Float.parseFloat(arguments[++i]);
+          break;
+        case "--keyframe-interval":
+          keyframeInterval = Integer.parseInt(arguments[++i]);
+          if (keyframeInterval <= 0) {
+            System.err.println("--keyframe-interval must be positive");
+            System.exit(1);
+          }
+          break;
+        default:
+          System.err.println(USAGE);
+          System.exit(1);
+      }
+    }
+
+    final LSystem lsystem = LSystem.load(file);
+    lsystem.setParallel(parallel);
+    lsystem.setStats(stats);
+    lsystem.modulate(angleMod, growMod);
+    lsystem.addParticles(new Random(seed), count, spread);
+    final Recorder recorder =
+        null == recording ? null : new Recorder(recording, quantum, keyframeInterval);
+    lsystem.setRecorder(recorder);
+    int peak = lsystem.getParticleCount();
+    final long start = System.nanoTime();
+    for (int i = 0; i < steps; ++i) {
+      lsystem.step(dt);
+      peak = Math.max(peak, lsystem.getParticleCount());
+    }
+    final double seconds = (System.nanoTime() - start) / 1.0e9;
+    if (null != recorder) {
+      lsystem.setRecorder(null);
+      recorder.close();
+      System.out.printf("recorded %d frames to %s (%d bytes)%n",
+          recorder.frames(), recording, recording.length());
+    }
+    System.out.printf("%s: %d steps of %.6fs in %.3fs (%.1f steps/s)%n",
+        file.getName(), steps, dt, seconds, steps / seconds);
+    System.out.printf("particles: %d live, %d peak, fingerprint %016x%n",
+        lsystem.getParticleCount(), peak, lsystem.getParticleFingerprint());
+    if (null != stats) {
+      System.out.print(stats.getSummary());
+    }
+  }
+}
@@ -1,9 +1,12 @@
 package lparticlesystem;
 
 import java.io.File;
+import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
+import javax.management.ObjectName;
 import javax.swing.JFileChooser;
 import javax.swing.UIManager;
 import javax.swing.filechooser.FileFilter;
@@ -12,6 +15,7 @@ import processing.core.PApplet;
 import processing.core.PVector;
 
 import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
 
 @SuppressWarnings("serial")
 public class LParticleSystem extends PApplet {
@@ -19,22 +23,46 @@ public class LParticleSystem extends PApplet {
   private static final PVector X = new PVector(1.0f, 0.0f, 0.0f);
   private static final PVector Y = new PVector(0.0f, 1.0f, 0.0f);
   private static final PVector NZ = new PVector(0.0f, 0.0f, -1.0f);
+  // Processing's default perspective, which this sketch never overrides.
+  private static final float FIELD_OF_VIEW = PI / 3.0f;
+  private static final float SIMULATION_DT = 1.0f / 60.0f;
+  private static final long SHUTDOWN_SECONDS = 5;
   
   private final Map<Character, Boolean> keys = new HashMap<>();
   private final Map<Integer, Boolean> keyCodes = new HashMap<>();
   private LSystem lsystem;
+  private Simulation simulation;
+  private final GrammarLoader loader = new GrammarLoader();
+  private File recording = null;
+  // The last recording stopped, which becomes playable once the simulation thread closes it.
+  private ListenableFuture<File> finished = null;
+  private Player player = null;
   private PVector eye = new PVector(0.0f, 0.0f, 1000.0f),
       forward = new PVector(0.0f, 0.0f, -1.0f),
       right = new PVector(1.0f, 0.0f, 0.0f),
       up = new PVector(0.0f, 1.0f, 0.0f);
-  private Quaternion orientation = new Quaternion();
+  private final Quaternion orientation = new Quaternion();
+  private final Quaternion inverse = new Quaternion();
+  private final Quaternion rotation = new Quaternion();
   private boolean sys = false;
+  private boolean overlay = false;
+  private boolean culling = true;
+  private final Frustum frustum = new Frustum();
+  private final FrameStats stats = new FrameStats();
 
   @Override public void setup() {
     size(1024, 768, OPENGL);
     smooth();
     background(300, 100, 0.19f);
-    lsystem = LSystem.load(chooseFile());
+    final File file = chooseFile();
+    loader.load(file);
+    loader.watch(file);
+    try {
+      ManagementFactory.getPlatformMBeanServer().registerMBean(
+          stats, new ObjectName("lparticlesystem:type=FrameStats"));
+    } catch (final Throwable rethrown) {
+      throw Throwables.propagate(rethrown);
+    }
   }
   
   private File chooseFile() {
@@ -66,7 +94,19 @@ public class LParticleSystem extends PApplet {
     background(300, 100, 0.19f);
 //    background(0);
     
+    final LSystem loaded = loader.latest();
+    if (loaded != lsystem) {
+      swap(loaded);
+    }
+
     input();
+    orientation.conjugateInto(inverse);
+    inverse.rotateInto(NZ, forward);
+    inverse.rotateInto(X, right);
+    inverse.rotateInto(Y, up);
+    final float cameraZ = height / 2.0f / tan(FIELD_OF_VIEW / 2.0f);
+    frustum.set(eye, forward, right, up, FIELD_OF_VIEW, (float) width / height,
+        cameraZ / 10.0f, cameraZ * 10.0f).setViewport(height, FIELD_OF_VIEW);
 
     camera(0.0f, 0.0f, 0.0f,
         NZ.x, NZ.y, NZ.z,
@@ -77,17 +117,88 @@ public class LParticleSystem extends PApplet {
     
     stroke(255);
     strokeWeight(2.0f);
-    lsystem.draw(map(mouseX, 0, width, 1.0f - 0.01f, 1.0f + 0.01f),
-        map(mouseY, 0, height, 1.0f - 0.1f, 1.0f + 0.1f), this, sys);
+    if (null != simulation) {
+      simulation.modulate(map(mouseX, 0, width, 1.0f - 0.01f, 1.0f + 0.01f),
+          map(mouseY, 0, height, 1.0f - 0.1f, 1.0f + 0.1f));
+      final Snapshot snapshot = simulation.latest();
+      if (null != player) {
+        player.seek((player.frame() + 1) % player.frames());
+        player.draw(this);
+      } else if (null != snapshot) {
+        lsystem.render(snapshot, this, sys, culling ? frustum : null);
+      }
+    }
 //    strokeWeight(5.0f);
 //    line(-100, 0, 0, 100, 0, 0);
 //    line(0, -100, 0, 0, 100, 0);
 //    line(0, 0, -100, 0, 0, 100);
     
-    final Quaternion inverse = orientation.reciprocal();
-    forward = inverse.transform(NZ);
-    right = inverse.transform(X);
-    up = inverse.transform(Y);
+    if (overlay) {
+      drawOverlay();
+    }
+  }
+
+  @Override public void dispose() {
+    loader.close();
+    if (null != simulation) {
+      try {
+        simulation.stop().get(SHUTDOWN_SECONDS, TimeUnit.SECONDS);
+      } catch (final Throwable e) {
+        System.err.printf("Could not stop the simulation: %s%n", e);
+      }
+    }
+    super.dispose();
+  }
+
+  private void swap(final LSystem loaded) {
+    if (null != simulation) {
+      final ListenableFuture<File> stopped = simulation.stop();
+      if (null != recording) {
+        System.err.printf("Reloading the grammar ended the recording to %s%n", recording);
+        finished = stopped;
+        recording = null;
+      }
+    }
+    if (null != lsystem) {
+      loaded.setParallel(lsystem.isParallel());
+      loaded.setDetail(lsystem.getDetail());
+    }
+    stats.reset();
+    loaded.setStats(stats);
+    lsystem = loaded;
+    simulation = new Simulation(loaded, SIMULATION_DT);
+    simulation.start();
+  }
+
+  private void replay() {
+    if (!finished.isDone()) {
+      System.err.println("The recording is still being finished");
+      return;
+    }
+    try {
+      final File file = finished.get();
+      if (null == file) {
+        return;
+      }
+      final Player loaded = new Player(file);
+      if (0 == loaded.frames()) {
+        System.err.printf("%s has no frames%n", file);
+        return;
+      }
+      player = loaded;
+    } catch (final Throwable e) {
+      System.err.printf("Could not replay the recording: %s%n", e);
+    }
+  }
+
+  private void drawOverlay() {
+    hint(DISABLE_DEPTH_TEST);
+    camera();
+    noLights();
+    fill(0.0f, 0.0f, 1.0f);
+    textSize(12.0f);
+    text(stats.getSummary(), 10.0f, 20.0f);
+    hint(ENABLE_DEPTH_TEST);
   }
 
   private void input() {
@@ -122,27 +233,30 @@ public class LParticleSystem extends PApplet {
       eye.sub(step);
     }
     if (keyCodeDown(RIGHT)) {
-      orientation = Quaternion.fromAxisAngle(Y, 0.1f).times(orientation);
+      orientation.premulLocal(rotation.setAxisAngle(Y, 0.1f)).normalizeLocal();
     }
     if (keyCodeDown(LEFT)) {
-      orientation = Quaternion.fromAxisAngle(Y, -0.1f).times(orientation);
+      orientation.premulLocal(rotation.setAxisAngle(Y, -0.1f)).normalizeLocal();
     }
     if (keyCodeDown(DOWN)) {
-      orientation = Quaternion.fromAxisAngle(X, -0.1f).times(orientation);
+      orientation.premulLocal(rotation.setAxisAngle(X, -0.1f)).normalizeLocal();
     }
     if (keyCodeDown(UP)) {
-      orientation = Quaternion.fromAxisAngle(X, 0.1f).times(orientation);
+      orientation.premulLocal(rotation.setAxisAngle(X, 0.1f)).normalizeLocal();
     }
     if (keyDown(',')) {
-      orientation = Quaternion.fromAxisAngle(NZ, -0.1f).times(orientation);
+      orientation.premulLocal(rotation.setAxisAngle(NZ, -0.1f)).normalizeLocal();
     }
     if (keyDown('.')) {
-      orientation = Quaternion.fromAxisAngle(NZ, 0.1f).times(orientation);
+      orientation.premulLocal(rotation.setAxisAngle(NZ, 0.1f)).normalizeLocal();
     }
   }
   
   @Override public void mousePressed() {
-    lsystem.addParticle(new PVector(mouseX, mouseY, 0.0f),
+    if (null == simulation) {
+      return;
+    }
+    simulation.spawn(new PVector(mouseX, mouseY, 0.0f),
         map(mouseX, 0, width, 1.0f - 0.01f, 1.0f + 0.01f),
         map(mouseY, 0, height, 1.0f - 0.1f, 1.0f + 0.1f));
   }
@@ -164,6 +278,37 @@ public class LParticleSystem extends PApplet {
     if ('\t' == key) {
       sys = !sys;
     }
+    if ('p' == key && null != lsystem) {
+      lsystem.setParallel(!lsystem.isParallel());
+    }
+    if ('i' == key) {
+      overlay = !overlay;
+    }
+    if ('c' == key) {
+      culling = !culling;
+    }
+    if ('r' == key && null != simulation) {
+      if (null == recording) {
+        recording = new File(sketchPath(String.format("recording-%d.lprec", millis())));
+        simulation.record(recording);
+      } else {
+        finished = simulation.record(null);
+        recording = null;
+      }
+    }
+    if ('y' == key) {
+      if (null != player) {
+        player = null;
+      } else if (null != finished) {
+        replay();
+      }
+    }
+    if ('[' == key && null != lsystem) {
+      lsystem.setDetail(lsystem.getDetail() > 0.125f ? lsystem.getDetail() / 2.0f : 0.0f);
+    }
+    if (']' == key && null != lsystem) {
+      lsystem.setDetail(Math.max(1.0f / 16.0f, lsystem.getDetail() * 2.0f));
+    }
   }
   
   @Override public void keyReleased() {
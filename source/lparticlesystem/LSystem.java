@@ -2,18 +2,25 @@ package lparticlesystem;
 
 import java.io.File;
 import java.io.FileReader;
-import java.util.ArrayDeque;
+import java.nio.CharBuffer;
 import java.util.ArrayList;
-import java.util.Deque;
+import java.util.Arrays;
 import java.util.List;
-import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Random;
+import java.util.concurrent.RecursiveAction;
 
 import processing.core.PApplet;
+import processing.core.PShape;
 import processing.core.PVector;
 
 import com.google.common.base.Throwables;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonObject;
 import com.google.gson.JsonParser;
@@ -24,12 +31,12 @@ public class LSystem {
   public static LSystem load(final File file) {
     final ImmutableMap.Builder<String, String> builder = ImmutableMap.builder();
     if (null == file) {
-      return new LSystem(new Parameters(), "L", builder.build());
+      return new LSystem(new Parameters(), Grammar.compile("L", builder.build()));
     }
     final JsonParser parser = new JsonParser();
     JsonObject object;
-    try {
-      object = parser.parse(new JsonReader(new FileReader(file))).getAsJsonObject();
+    try (final JsonReader reader = new JsonReader(new FileReader(file))) {
+      object = parser.parse(reader).getAsJsonObject();
     } catch (final Throwable rethrown) {
       throw Throwables.propagate(rethrown);
     }
@@ -45,21 +52,60 @@ public class LSystem {
       for (final Entry<String, JsonElement> entry : system.entrySet()) {
         builder.put(entry.getKey(), entry.getValue().getAsString());
       }
-      return new LSystem(new Parameters(iterations, angleGrowth, sizeGrowth, stepAngle, stepSize),
-          start, builder.build());
+      final Grammar grammar = Grammar.compile(start, builder.build());
+      return new LSystem(admit(grammar,
+          new Parameters(iterations, angleGrowth, sizeGrowth, stepAngle, stepSize)), grammar);
     } else {
-      return new LSystem(new Parameters(), "L", builder.build());
+      return new LSystem(new Parameters(), Grammar.compile("L", builder.build()));
     }
   }
 
-  private static final float HUE_DIVISOR = 500.0f;
+  private static Parameters admit(final Grammar grammar, final Parameters parameters) {
+    int iterations = parameters.iterations;
+    while (iterations > 0 && grammar.count('F', iterations) > MAX_SEGMENTS) {
+      --iterations;
+    }
+    if (iterations == parameters.iterations) {
+      return parameters;
+    }
+    System.err.printf("Lowering iterations from %d to %d to stay within %d segments%n",
+        parameters.iterations, iterations, MAX_SEGMENTS);
+    return new Parameters(iterations, parameters.angleGrowth, parameters.sizeGrowth,
+        parameters.stepAngle, parameters.stepSize);
+  }
+
+  private static final long MAX_SYSTEM_LENGTH =
+      Math.min(Long.getLong("lparticlesystem.maxSystemLength", 1L << 26), Grammar.MAX_LENGTH);
+  private static final long MAX_SEGMENTS =
+      Math.min(Long.getLong("lparticlesystem.maxSegments", 1L << 22), Grammar.MAX_LENGTH - 1);
+  // The heap a cached tree holds per segment: its eight float columns and its BVH's ordering.
+  // Topology is shared between trees, and their shapes are weakly keyed on them.
+  private static final int CACHED_BYTES_PER_SEGMENT = 36;
+  // Segments the cached trees may hold in total, always room for at least one admitted tree.
+  private static final long MAX_CACHED_SEGMENTS = Math.max(MAX_SEGMENTS,
+      Long.getLong("lparticlesystem.treeCacheBytes", Runtime.getRuntime().maxMemory() / 4)
+          / CACHED_BYTES_PER_SEGMENT);
+
+  private static final float MODULATOR_QUANTUM = 1.0e-4f;
+  private static final int MAX_CACHED_TREES = 16;
+  private static final int MIN_PERSISTED_SYMBOLS = 1 << 20;
+  private static final int MIN_PERSISTED_SEGMENTS = 1 << 16;
+  private static final int MIN_PARALLEL_SYMBOLS = 1 << 16;
+  // Symbols a turtle interprets between checks for cancellation.
+  private static final int CANCELLATION_INTERVAL = 1 << 16;
+  private static final int MIN_SPLIT_SYMBOLS = 1 << 12;
+  // Branch groups projecting to fewer pixels than this are drawn as their longest segment.
+  private static final float DEFAULT_DETAIL = 2.0f;
   
+  private static final float DEG_TO_RAD = (float) Math.PI / 180.0f;
+
   private static final PVector X = new PVector(1.0f, 0.0f, 0.0f);
   private static final PVector Y = new PVector(0.0f, 1.0f, 0.0f);
   private static final PVector Z = new PVector(0.0f, 0.0f, 1.0f);
   private static final PVector NX = new PVector(-1.0f, 0.0f, 0.0f);
   private static final PVector NY = new PVector(0.0f, -1.0f, 0.0f);
   private static final PVector NZ = new PVector(0.0f, 0.0f, -1.0f);
+  private static final Quaternion HALF_TURN = Quaternion.fromAxisAngle(Z, DEG_TO_RAD * 180.0f);
   
   private static class Parameters {
 
@@ -84,311 +130,733 @@ public class LSystem {
     }
   }
   
-  private static class State implements Cloneable {
+  private static class Rotations {
+    public static final int POSITIVE_Z = 0;
+    public static final int NEGATIVE_Z = 1;
+    public static final int POSITIVE_X = 2;
+    public static final int NEGATIVE_X = 3;
+    public static final int POSITIVE_Y = 4;
+    public static final int NEGATIVE_Y = 5;
+
+    private static final PVector[] AXES = { Z, NZ, X, NX, Y, NY };
+
+    private final Quaternion[] rotations = new Quaternion[AXES.length];
+    private final float[] angles = new float[AXES.length];
+
+    public Rotations() {
+      for (int i = 0; i < AXES.length; ++i) {
+        rotations[i] = new Quaternion();
+        angles[i] = Float.NaN;
+      }
+    }
+
+    public Quaternion get(final int axis, final float degrees) {
+      if (angles[axis] != degrees) {
+        angles[axis] = degrees;
+        rotations[axis].setAxisAngle(AXES[axis], DEG_TO_RAD * degrees);
+      }
+      return rotations[axis];
+    }
+  }
+
+  private static class State {
     
     public float stepAngle = 0.0f;
     public float stepSize = 10.0f;
     
-    public PVector position0 = new PVector(), position1 = new PVector();
-    public Quaternion orientation = new Quaternion();
+    public final PVector position0 = new PVector(), position1 = new PVector();
+    public final Quaternion orientation = new Quaternion();
     
     public float h = 0.0f;
     public float s = 0.5f;
     public float b = 1.0f;
+
+    public int node = Tree.NONE;
     
-    public State clone() {
-      try {
-        final State result = (State) super.clone();
-        result.position0 = position0.get();
-        result.position1 = position1.get();
-        result.orientation = orientation.get();
-        return result;
-      } catch (final Throwable rethrown) {
-        throw Throwables.propagate(rethrown);
-      }
-    }
-  }
-  
-  private static class Node {
-    public final State state;
-    public final List<Node> children;
-    public int depth;
-    
-    public Node(final State state, final int depth) {
-      this.state = state;
-      children = new ArrayList<>();
-      this.depth = depth;
-    }
-  }
-  
-  private static class Particle {
-    private static final float MAX_LIFE = 0.02f;
-    
-    public Node node; 
-    public float life;
-    
-    private PVector position;
-    private PVector velocity;
-    
-    public Particle(final Node node) {
-      this.node = node;
-      initialize();
-    }
-    
-    public Particle(final Node node, final Particle parent) {
-      this.node = node;
-      initialize();
-      position = parent.position.get();
-//      velocity.add(parent.velocity.get());
-    }
-    
-    private void initialize() {
-      position = node.state.position0.get();
-      velocity = node.state.position1.get();
-      velocity.sub(position);
-      velocity.div(MAX_LIFE);
-      life = 0.0f;
-    }
-    
-    public void update(
-        final float dt, final List<Particle> newParticles, final List<Particle> deadParticles) {
-      final PVector distance = velocity.get();
-      distance.mult(dt);
-      position.add(distance);
-//      velocity.y += 98.1f * dt;
-//      
-//      if (position.y > 1000.0f) {
-//        position.y = 1000.0f;
-//        velocity.y *= -0.9f;
-//      }
-
-//      if (position.x > 1000.0f) {
-//        position.x = 1000.0f;
-//        velocity.x *= -0.9f;
-//      }
-
-//      if (position.x < -1000.0f) {
-//        position.x = -1000.0f;
-//        velocity.x *= -0.9f;
-//      }
-      
-      life += dt;
-      if (life > MAX_LIFE) {
-        for (int i = 1; i < node.children.size(); ++i) {
-          newParticles.add(new Particle(node.children.get(i), this));
-        }
-        if (node.children.size() > 0) {
-          node = node.children.get(0);
-          final PVector oldPosition = position.get();
-          final PVector oldVelocity = velocity.get();
-          initialize();
-          position.set(oldPosition);
-//          velocity.add(oldVelocity);
-        } else {
-          deadParticles.add(this);
-        }
-      }
-    }
-    
-    public void draw(float dt, final PApplet applet) {
-//      if (life < MAX_LIFE) {
-//      dt *= 10.0f;
-        applet.stroke(applet.color((node.state.h / HUE_DIVISOR + 360.0f) % 360.0f, node.depth / 50.0f, node.state.b));
-//        applet.fill(applet.color((node.state.h / 1000.0f + 360.0f) % 360.0f, node.depth / 100.0f, node.state.b));
-//        applet.noStroke();
-//        applet.beginShape(PApplet.TRIANGLE_STRIP);
-//        applet.vertex(
-//            position.x / 2.0f + velocity.x * dt / 4.0f,
-//            position.y / 2.0f + velocity.y * dt / 4.0f,
-//            position.z / 2.0f + velocity.z * dt / 4.0f);
-//        applet.vertex(position.x, position.y, position.z);
-//        applet.vertex(
-//            position.x + velocity.x * dt,
-//            position.y + velocity.y * dt,
-//            position.z + velocity.z * dt);
-//        applet.endShape();
-        applet.strokeWeight(10.0f);
-        applet.point(position.x, position.y, position.z);
-//      }
+    public State set(final State that) {
+      stepAngle = that.stepAngle;
+      stepSize = that.stepSize;
+      position0.set(that.position0);
+      position1.set(that.position1);
+      orientation.set(that.orientation);
+      h = that.h;
+      s = that.s;
+      b = that.b;
+      node = that.node;
+      return this;
     }
   }
 
   private final Parameters parameters;
-  private final String start;
-  private final Map<String, String> rules;
-  private final List<Particle> particles;
+  private final Grammar grammar;
+  private final long derivedLength;
+  private final boolean streaming;
+  private final Particles particles;
+  private volatile boolean parallel = false;
   private int cachedIterationCount;
-  private String cachedSystem;
-  private Node cachedTree;
+  private CharBuffer cachedSystem;
+  private Splits cachedSplits = null;
+  private final Cache<Long, Tree> trees;
+  private final Cache<Tree, PShape> shapes;
+  private final Cache<Tree, Bvh> bvhs;
+  private final Cache<Tree, PShape[]> leafShapes;
+  private Bvh topologyBvh = null;
+  private int[] visibleNodes = new int[0];
+  private float detail = DEFAULT_DETAIL;
+  private final BinaryCache binaryCache;
+  private Tree topology = null;
+  private float angleMod = 1.0f;
+  private float growMod = 1.0f;
   private int lastTick = 0;
+  private FrameStats stats = null;
+  private Recorder recorder = null;
+  private long steps = 0;
   
-  private LSystem(final Parameters parameters,
-      final String start, final Map<String, String> rules) {
+  private LSystem(final Parameters parameters, final Grammar grammar) {
     this.parameters = parameters;
-    this.start = start;
-    this.rules = rules;
-    this.particles = new ArrayList<>();
+    this.grammar = grammar;
+    this.derivedLength = grammar.length(parameters.iterations);
+    this.streaming = derivedLength > MAX_SYSTEM_LENGTH;
+    this.particles = new Particles();
     this.cachedIterationCount = 0;
     this.cachedSystem = null;
-    this.cachedTree = null;
+    // A single segment, so the whole weight is available to any one tree.
+    this.trees = CacheBuilder.newBuilder().concurrencyLevel(1)
+        .maximumWeight(MAX_CACHED_SEGMENTS).weigher(new Weigher<Long, Tree>() {
+
+          @Override public int weigh(final Long key, final Tree tree) {
+            // Small trees still weigh a share of the total, so no more than MAX_CACHED_TREES
+            // are kept.
+            return (int) Math.min(Integer.MAX_VALUE,
+                Math.max(tree.size(), MAX_CACHED_SEGMENTS / MAX_CACHED_TREES));
+          }
+        }).build();
+    this.shapes = CacheBuilder.newBuilder().weakKeys().build();
+    this.bvhs = CacheBuilder.newBuilder().weakKeys().build();
+    this.leafShapes = CacheBuilder.newBuilder().weakKeys().build();
+    this.binaryCache = BinaryCache.fromSystemProperties();
   }
   
+  public boolean isParallel() {
+    return parallel;
+  }
+
+  public void setParallel(final boolean parallel) {
+    this.parallel = parallel;
+  }
+
+  public float getDetail() {
+    return detail;
+  }
+
+  public void setDetail(final float detail) {
+    this.detail = detail;
+  }
+
+  public void setStats(final FrameStats stats) {
+    this.stats = stats;
+    particles.setTiming(null != stats);
+  }
+
+  public int getParticleCount() {
+    return particles.size();
+  }
+
+  public long getParticleFingerprint() {
+    return particles.fingerprint();
+  }
+
+  public void modulate(final float angleMod, final float growMod) {
+    this.angleMod = angleMod;
+    this.growMod = growMod;
+  }
+
+  public void step(final float dt) {
+    final Tree tree = tree(angleMod, growMod);
+    ++steps;
+    if (null == stats) {
+      particles.update(tree, dt, parallel);
+      record(tree);
+      return;
+    }
+    final long start = System.nanoTime();
+    particles.update(tree, dt, parallel);
+    record(tree);
+    stats.record(FrameStats.Phase.PARTICLE_UPDATE, System.nanoTime() - start);
+    stats.record(FrameStats.Phase.BIRTH_DEATH, particles.getLastBookkeepingNanos());
+    stats.step(particles.size(), particles.getLastBirths(), particles.getLastDeaths());
+    stats.tree(tree.size(), derivedLength);
+  }
+
+  /**
+   * Records every following step to {@code recorder}, or stops recording if it is null. The
+   * caller closes the recorder.
+   */
+  public void setRecorder(final Recorder recorder) {
+    this.recorder = recorder;
+    particles.setTracking(null != recorder);
+  }
+
+  private void record(final Tree tree) {
+    if (null != recorder) {
+      recorder.record(steps, tree, particles);
+    }
+  }
+
   public void draw(final float angleMod, final float growMod, final PApplet applet, boolean sys) {
+    draw(angleMod, growMod, applet, sys, null);
+  }
+
+  public void draw(final float angleMod, final float growMod, final PApplet applet,
+      final boolean sys, final Frustum frustum) {
     final int tick = applet.millis();
     final int ticks = tick - lastTick;
     lastTick = tick;
-    final float dt = ticks / 1000.0f;
-    final String system = maybeCacheSystem(parameters.iterations);
-    final Node tree = buildTree(system, angleMod, growMod);
+    modulate(angleMod, growMod);
+    step(ticks / 1000.0f);
+    render(applet, sys, frustum);
+  }
+
+  public void render(final PApplet applet, final boolean sys) {
+    render(applet, sys, null);
+  }
+
+  /**
+   * Draws the tree and particles, or only the parts inside {@code frustum} when it is not null.
+   */
+  public void render(final PApplet applet, final boolean sys, final Frustum frustum) {
+    render(tree(angleMod, growMod), particles, applet, sys, frustum);
+  }
+
+  /**
+   * Draws a snapshot published by {@link #publish}, possibly from another thread.
+   */
+  public void render(final Snapshot snapshot, final PApplet applet, final boolean sys,
+      final Frustum frustum) {
+    render(snapshot.tree, snapshot.particles, applet, sys, frustum);
+  }
+
+  /**
+   * Stages the current particles, and the branches when {@code branches} is set, for a software
+   * {@link Rasterizer} without copying them.
+   */
+  public void stage(final Rasterizer rasterizer, final boolean branches) {
+    rasterizer.draw(tree(angleMod, growMod), particles, branches);
+  }
+
+  public void publish(final Snapshot snapshot) {
+    snapshot.tree = tree(angleMod, growMod);
+    snapshot.particles.copyFrom(particles);
+  }
+
+  private void render(final Tree tree, final Particles particles, final PApplet applet,
+      final boolean sys, final Frustum frustum) {
     applet.colorMode(PApplet.HSB, 360.0f, 1.0f, 1.0f);
+    long start = null == stats ? 0 : System.nanoTime();
     if (sys) {
-      drawNode(tree, applet);
-    }
-    final List<Particle> newParticles = new ArrayList<>();
-    final List<Particle> deadParticles = new ArrayList<>();
-    for (final Particle particle : particles) {
-      particle.update(dt, newParticles, deadParticles);
+      if (null == frustum) {
+        drawTree(tree, applet);
+      } else {
+        drawTree(tree, applet, frustum);
+      }
+      if (null != stats) {
+        final long end = System.nanoTime();
+        stats.record(FrameStats.Phase.TREE_DRAW, end - start);
+        start = end;
+      }
     }
-    particles.addAll(newParticles);
-    particles.removeAll(deadParticles);
-    for (final Particle particle : particles) {
-      particle.draw(dt, applet);
+    particles.draw(tree, applet, frustum);
+    if (null != stats) {
+      stats.record(FrameStats.Phase.PARTICLE_DRAW, System.nanoTime() - start);
     }
-    lastTick = tick;
   }
   
-  private Node buildTree(final String system, final float angleMod, final float growMod) {
-//    if (null == cachedTree) {
-      State state = new State();
-      Node node = new Node(state, 0);
-      final Node root = node;
-      state.stepAngle = parameters.stepAngle;
-      state.stepSize = parameters.stepSize;
-      final Deque<State> stack = new ArrayDeque<>(parameters.iterations);
-      final Deque<Node> tree = new ArrayDeque<>(parameters.iterations);
-      for (int i = 0; i < system.length(); ++i) {
-        switch (system.charAt(i)) {
+  private Tree tree(final float angleMod, final float growMod) {
+    final int angleKey = Math.round(angleMod / MODULATOR_QUANTUM);
+    final int growKey = Math.round(growMod / MODULATOR_QUANTUM);
+    final Long key = ((long) angleKey << Integer.SIZE) | (growKey & 0xffffffffL);
+    Tree tree = trees.getIfPresent(key);
+    if (null == tree) {
+      // Only the tree that lays out the topology is persisted: later trees are cheap rebuilds of
+      // it, and one per modulator setting would fill the disk as the mouse moves.
+      final boolean persist = null != binaryCache && null == topology;
+      final HashCode treeKey = persist ? treeKey(angleKey, growKey) : null;
+      tree = persist ? binaryCache.loadTree(treeKey) : null;
+      if (null != tree) {
+        topology = tree;
+      }
+      if (null == tree) {
+        final CharBuffer system = streaming ? null : maybeCacheSystem(parameters.iterations);
+        final long start = System.nanoTime();
+        tree = buildTree(system, angleKey * MODULATOR_QUANTUM, growKey * MODULATOR_QUANTUM);
+        if (null != stats) {
+          stats.record(FrameStats.Phase.TREE_BUILD, System.nanoTime() - start);
+        }
+        if (persist && tree.size() >= MIN_PERSISTED_SEGMENTS) {
+          binaryCache.storeTree(treeKey, tree);
+        }
+      }
+      trees.put(key, tree);
+    }
+    return tree;
+  }
+
+  private HashCode symbolsKey(final int iterations) {
+    return grammar.hashInto(Hashing.murmur3_128().newHasher()).putInt(iterations).hash();
+  }
+
+  private HashCode treeKey(final int angleKey, final int growKey) {
+    return grammar.hashInto(Hashing.murmur3_128().newHasher())
+        .putInt(parameters.iterations)
+        .putFloat(parameters.angleGrowth)
+        .putFloat(parameters.sizeGrowth)
+        .putFloat(parameters.stepAngle)
+        .putFloat(parameters.stepSize)
+        .putInt(angleKey)
+        .putInt(growKey)
+        .hash();
+  }
+
+  /**
+   * Derives and interprets the system at the current modulators ahead of the first step. If the
+   * calling thread is interrupted meanwhile, stops early with a
+   * {@link java.util.concurrent.CancellationException} and leaves this system unusable.
+   */
+  void prepare() {
+    tree(angleMod, growMod);
+  }
+
+  Grammar getGrammar() {
+    return grammar;
+  }
+
+  int getIterations() {
+    return parameters.iterations;
+  }
+
+  Tree buildTree(final float angleMod, final float growMod) {
+    return buildTree(symbols(), angleMod, growMod);
+  }
+
+  /**
+   * Returns the derived symbols, or null if they are too long to hold and are streamed instead.
+   */
+  CharBuffer symbols() {
+    return streaming ? null : maybeCacheSystem(parameters.iterations);
+  }
+
+  /**
+   * Interprets {@code system}, or streams the derivation if it is null. The first call lays out
+   * the topology; later calls only refill the geometry.
+   */
+  Tree buildTree(final CharBuffer system, final float angleMod, final float growMod) {
+    final boolean rebuild = null != topology;
+    final Tree tree = rebuild
+        ? new Tree(topology) : new Tree((int) grammar.count('F', parameters.iterations) + 1);
+    final Turtle turtle = new Turtle(tree, rebuild, angleMod, growMod);
+    if (!rebuild) {
+      tree.attach(0, Tree.NONE);
+    }
+    tree.set(0, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, 0.0f, turtle.state.h, turtle.state.b);
+    final Thread caller = Thread.currentThread();
+    if (null == system) {
+      interpret(caller, turtle, grammar.iterator(parameters.iterations));
+    } else if (parallel && system.limit() >= MIN_PARALLEL_SYMBOLS) {
+      Workers.POOL.invoke(new Branch(caller, turtle, system, splits(system), 0, system.limit()));
+    } else {
+      interpret(caller, turtle, new SymbolBufferIterator(system));
+    }
+    if (!rebuild) {
+      tree.link();
+      topology = tree;
+    }
+    return tree;
+  }
+
+  private static void interpret(final Thread caller, final Turtle turtle,
+      final SymbolIterator symbols) {
+    for (int i = 1; symbols.hasNext(); ++i) {
+      if (0 == i % CANCELLATION_INTERVAL) {
+        Grammar.checkNotInterrupted(caller);
+      }
+      turtle.interpret(symbols.next());
+    }
+  }
+
+  private Splits splits(final CharBuffer system) {
+    if (null == cachedSplits || cachedSplits.system != system) {
+      cachedSplits = new Splits(system);
+    }
+    return cachedSplits;
+  }
+
+  /**
+   * The bracketed branches of a symbol stream long enough to be worth interpreting on their own,
+   * sorted by opening position, with the number of segments drawn before each bracket.
+   */
+  private static class Splits {
+    public final CharBuffer system;
+    public int size = 0;
+    public int[] open = new int[16];
+    public int[] close = new int[16];
+    public int[] segmentsBeforeOpen = new int[16];
+    public int[] segmentsBeforeClose = new int[16];
+
+    public Splits(final CharBuffer system) {
+      this.system = system;
+      int[] positions = new int[16];
+      int[] segments = new int[16];
+      int depth = 0;
+      int segment = 0;
+      for (int i = 0; i < system.limit(); ++i) {
+        switch (system.get(i)) {
           case 'F': {
-            state.position0 = state.position1.get();
-            final PVector step = state.orientation.transform(
-                new PVector(state.stepSize * angleMod, 0.0f, 0.0f));
-            state.position1.add(step);
-            final Node child = new Node(state.clone(), node.depth + 1);
-            node.children.add(child);
-            node = child;
-            break;
-          } case '+': {
-            state.h += state.stepAngle * angleMod;
-            state.orientation = Quaternion.fromAxisAngle(
-                Z, PApplet.radians(state.stepAngle * angleMod)).times(state.orientation);
-            break;
-          } case '-': {
-            state.h -= state.stepAngle * angleMod;
-            state.orientation = Quaternion.fromAxisAngle(
-                NZ, PApplet.radians(state.stepAngle * angleMod)).times(state.orientation);
-            break;
-          } case '/': {
-            state.h += state.stepAngle * angleMod;
-            state.orientation = Quaternion.fromAxisAngle(
-                X, PApplet.radians(state.stepAngle * angleMod)).times(state.orientation);
-            break;
-          } case '\\': {
-            state.h -= state.stepAngle * angleMod;
-            state.orientation = Quaternion.fromAxisAngle(
-                NX, PApplet.radians(state.stepAngle * angleMod)).times(state.orientation);
-            break;
-          } case '}': {
-            state.h += state.stepAngle * angleMod;
-            state.orientation = Quaternion.fromAxisAngle(
-                Y, PApplet.radians(state.stepAngle * angleMod)).times(state.orientation);
-            break;
-          } case '{': {
-            state.h -= state.stepAngle * angleMod;
-            state.orientation = Quaternion.fromAxisAngle(
-                NY, PApplet.radians(state.stepAngle * angleMod)).times(state.orientation);
-            break;
-          } case '<': {
-            state.s *= (1.0f + parameters.sizeGrowth);
-            state.stepSize *= (1.0f + parameters.sizeGrowth);
-            break;
-          } case '>': {
-            state.s *= (1.0f - parameters.sizeGrowth);
-            state.stepSize *= (1.0f - parameters.sizeGrowth);
-            break;
-          } case '(': {
-            state.b *= (1.0f + 0.1f * growMod);
-            state.stepAngle *= (1.0f - parameters.angleGrowth * growMod);
-            break;
-          } case ')': {
-            state.b *= (1.0f - 0.1f * growMod);
-            state.stepAngle *= (1.0f + parameters.angleGrowth * growMod);
+            ++segment;
             break;
           } case '[': {
-            stack.push(state.clone());
-            tree.push(node);
+            if (depth == positions.length) {
+              positions = Arrays.copyOf(positions, 2 * depth);
+              segments = Arrays.copyOf(segments, 2 * depth);
+            }
+            positions[depth] = i;
+            segments[depth++] = segment;
             break;
           } case ']': {
-            state = stack.pop().clone();
-            node = tree.pop();
-            break;
-          } case '!': {
-            state.stepAngle *= -1.0f;
-            break;
-          } case '|': {
-            state.orientation = Quaternion.fromAxisAngle(
-                Z, PApplet.radians(180.0f)).times(state.orientation);
+            --depth;
+            if (i - positions[depth] >= MIN_SPLIT_SYMBOLS) {
+              add(positions[depth], i, segments[depth], segment);
+            }
             break;
           } default: {
             break;
           }
         }
       }
-      cachedTree = root;
-//      addParticle(new PVector(), angleMod, growMod);
-//    }
-    return cachedTree;
+      sortByOpen();
+    }
+
+    public int first(final int position) {
+      final int i = Arrays.binarySearch(open, 0, size, position);
+      return i < 0 ? -i - 1 : i;
+    }
+
+    private void add(final int open, final int close,
+        final int segmentsBeforeOpen, final int segmentsBeforeClose) {
+      if (size == this.open.length) {
+        this.open = Arrays.copyOf(this.open, 2 * size);
+        this.close = Arrays.copyOf(this.close, 2 * size);
+        this.segmentsBeforeOpen = Arrays.copyOf(this.segmentsBeforeOpen, 2 * size);
+        this.segmentsBeforeClose = Arrays.copyOf(this.segmentsBeforeClose, 2 * size);
+      }
+      this.open[size] = open;
+      this.close[size] = close;
+      this.segmentsBeforeOpen[size] = segmentsBeforeOpen;
+      this.segmentsBeforeClose[size] = segmentsBeforeClose;
+      ++size;
+    }
+
+    private void sortByOpen() {
+      final long[] order = new long[size];
+      for (int i = 0; i < size; ++i) {
+        order[i] = (long) open[i] << Integer.SIZE | i;
+      }
+      Arrays.sort(order);
+      final int[] open = new int[size];
+      final int[] close = new int[size];
+      final int[] segmentsBeforeOpen = new int[size];
+      final int[] segmentsBeforeClose = new int[size];
+      for (int i = 0; i < size; ++i) {
+        final int j = (int) order[i];
+        open[i] = this.open[j];
+        close[i] = this.close[j];
+        segmentsBeforeOpen[i] = this.segmentsBeforeOpen[j];
+        segmentsBeforeClose[i] = this.segmentsBeforeClose[j];
+      }
+      this.open = open;
+      this.close = close;
+      this.segmentsBeforeOpen = segmentsBeforeOpen;
+      this.segmentsBeforeClose = segmentsBeforeClose;
+    }
+  }
+
+  /**
+   * Interprets a range of symbols, forking each long enough bracketed branch off to its own turtle
+   * seeded with a copy of the state at the bracket. Segments are indexed by the number of F symbols
+   * before them, so branches write disjoint parts of the tree.
+   */
+  @SuppressWarnings("serial")
+  private class Branch extends RecursiveAction {
+    private final Thread caller;
+    private final Turtle turtle;
+    private final CharBuffer system;
+    private final Splits splits;
+    private final int begin;
+    private final int end;
+
+    public Branch(final Thread caller, final Turtle turtle, final CharBuffer system,
+        final Splits splits, final int begin, final int end) {
+      this.caller = caller;
+      this.turtle = turtle;
+      this.system = system;
+      this.splits = splits;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override protected void compute() {
+      final List<Branch> branches = new ArrayList<>();
+      int split = splits.first(begin);
+      for (int i = begin; i < end; ++i) {
+        if (split < splits.size && i == splits.open[split]) {
+          final Branch branch = new Branch(caller,
+              new Turtle(turtle, splits.segmentsBeforeOpen[split]), system, splits, i + 1,
+              splits.close[split]);
+          branch.fork();
+          branches.add(branch);
+          i = splits.close[split];
+          turtle.segment = splits.segmentsBeforeClose[split];
+          split = splits.first(i);
+        } else {
+          if (0 == (i - begin + 1) % CANCELLATION_INTERVAL) {
+            Grammar.checkNotInterrupted(caller);
+          }
+          turtle.interpret(system.get(i));
+        }
+      }
+      for (final Branch branch : branches) {
+        branch.join();
+      }
+    }
+  }
+
+  private class Turtle {
+    public final State state = new State();
+    private final Tree tree;
+    private final boolean rebuild;
+    private final float angleMod;
+    private final float growMod;
+    private final Rotations rotations = new Rotations();
+    private final PVector step = new PVector();
+    private State[] stack = new State[Math.max(16, parameters.iterations)];
+    private int depth = 0;
+    private int segment = 0;
+
+    public Turtle(final Tree tree, final boolean rebuild, final float angleMod,
+        final float growMod) {
+      this.tree = tree;
+      this.rebuild = rebuild;
+      this.angleMod = angleMod;
+      this.growMod = growMod;
+      state.node = 0;
+      state.stepAngle = parameters.stepAngle;
+      state.stepSize = parameters.stepSize;
+    }
+
+    public Turtle(final Turtle that, final int segment) {
+      this(that.tree, that.rebuild, that.angleMod, that.growMod);
+      state.set(that.state);
+      this.segment = segment;
+    }
+
+    public void interpret(final char symbol) {
+      switch (symbol) {
+        case 'F': {
+          state.position0.set(state.position1);
+          step.set(state.stepSize * angleMod, 0.0f, 0.0f);
+          state.position1.add(state.orientation.transformInto(step, step));
+          if (!rebuild) {
+            tree.attach(segment + 1, state.node);
+          }
+          state.node = ++segment;
+          tree.set(state.node,
+              state.position0.x, state.position0.y, state.position0.z,
+              state.position1.x, state.position1.y, state.position1.z, state.h, state.b);
+          break;
+        } case '+': {
+          state.h += state.stepAngle * angleMod;
+          state.orientation.premulLocal(rotations.get(
+              Rotations.POSITIVE_Z, state.stepAngle * angleMod));
+          break;
+        } case '-': {
+          state.h -= state.stepAngle * angleMod;
+          state.orientation.premulLocal(rotations.get(
+              Rotations.NEGATIVE_Z, state.stepAngle * angleMod));
+          break;
+        } case '/': {
+          state.h += state.stepAngle * angleMod;
+          state.orientation.premulLocal(rotations.get(
+              Rotations.POSITIVE_X, state.stepAngle * angleMod));
+          break;
+        } case '\\': {
+          state.h -= state.stepAngle * angleMod;
+          state.orientation.premulLocal(rotations.get(
+              Rotations.NEGATIVE_X, state.stepAngle * angleMod));
+          break;
+        } case '}': {
+          state.h += state.stepAngle * angleMod;
+          state.orientation.premulLocal(rotations.get(
+              Rotations.POSITIVE_Y, state.stepAngle * angleMod));
+          break;
+        } case '{': {
+          state.h -= state.stepAngle * angleMod;
+          state.orientation.premulLocal(rotations.get(
+              Rotations.NEGATIVE_Y, state.stepAngle * angleMod));
+          break;
+        } case '<': {
+          state.s *= (1.0f + parameters.sizeGrowth);
+          state.stepSize *= (1.0f + parameters.sizeGrowth);
+          break;
+        } case '>': {
+          state.s *= (1.0f - parameters.sizeGrowth);
+          state.stepSize *= (1.0f - parameters.sizeGrowth);
+          break;
+        } case '(': {
+          state.b *= (1.0f + 0.1f * growMod);
+          state.stepAngle *= (1.0f - parameters.angleGrowth * growMod);
+          break;
+        } case ')': {
+          state.b *= (1.0f - 0.1f * growMod);
+          state.stepAngle *= (1.0f + parameters.angleGrowth * growMod);
+          break;
+        } case '[': {
+          if (depth == stack.length) {
+            stack = Arrays.copyOf(stack, 2 * depth);
+          }
+          if (null == stack[depth]) {
+            stack[depth] = new State();
+          }
+          stack[depth++].set(state);
+          break;
+        } case ']': {
+          state.set(stack[--depth]);
+          break;
+        } case '!': {
+          state.stepAngle *= -1.0f;
+          break;
+        } case '|': {
+          state.orientation.premulLocal(HALF_TURN);
+          break;
+        } default: {
+          break;
+        }
+      }
+    }
   }
   
   public void addParticle(final PVector position, final float angleMod, final float growMod) {
-//    if (null != cachedTree) {
-      final Particle particle = new Particle(buildTree(cachedSystem, angleMod, growMod));
-      particle.position.add(position);
-      particles.add(particle);
-//    }
+    modulate(angleMod, growMod);
+    addParticle(position.x, position.y, position.z);
   }
 
-  private void drawNode(final Node node, final PApplet applet) {
-    final State state0 = node.state;
-    applet.stroke(applet.color((node.state.h / HUE_DIVISOR + 360.0f) % 360.0f, node.depth / 50.0f, node.state.b));
-//    applet.stroke(applet.color((state0.h + 360.0f) % 360.0f, state0.s, state0.b));
-    applet.strokeWeight(2.0f);
-    applet.line(
-        state0.position0.x, state0.position0.y, state0.position0.z,
-        state0.position1.x, state0.position1.y, state0.position1.z);
-    float s = (applet.millis() / 1000.0f) % 1.0f;
-    for (int i = 0; i < node.children.size(); ++i) {
-      final Node child = node.children.get(i);
-      drawNode(child, applet);
+  public void addParticle(final float x, final float y, final float z) {
+    final Tree tree = tree(angleMod, growMod);
+    particles.add(tree, 0, tree.x0[0] + x, tree.y0[0] + y, tree.z0[0] + z);
+  }
+
+  public void addParticles(final Random random, final int count, final float spread) {
+    for (int i = 0; i < count; ++i) {
+      addParticle(spread * (2.0f * random.nextFloat() - 1.0f),
+          spread * (2.0f * random.nextFloat() - 1.0f), 0.0f);
     }
   }
 
-  private String maybeCacheSystem(final int iterations) {
+  private void drawTree(final Tree tree, final PApplet applet) {
+    PShape shape = shapes.getIfPresent(tree);
+    if (null == shape) {
+      shape = applet.createShape();
+      shape.beginShape(PApplet.LINES);
+      shape.strokeWeight(2.0f);
+      for (int i = 0; i < tree.size(); ++i) {
+        shape.stroke(applet.color(tree.hue(i), tree.saturation(i), tree.brightness(i)));
+        shape.vertex(tree.x0[i], tree.y0[i], tree.z0[i]);
+        shape.vertex(tree.x1[i], tree.y1[i], tree.z1[i]);
+      }
+      shape.endShape();
+      shapes.put(tree, shape);
+    }
+    applet.shape(shape);
+  }
+
+  private void drawTree(final Tree tree, final PApplet applet, final Frustum frustum) {
+    final Bvh bvh = bvh(tree);
+    PShape[] shapes = leafShapes.getIfPresent(tree);
+    if (null == shapes) {
+      shapes = new PShape[bvh.leaves()];
+      leafShapes.put(tree, shapes);
+    }
+    if (visibleNodes.length < bvh.nodes()) {
+      visibleNodes = new int[bvh.nodes()];
+    }
+    final int visible = bvh.cull(frustum, detail, visibleNodes);
+    boolean coarse = false;
+    for (int i = 0; i < visible; ++i) {
+      final int node = visibleNodes[i];
+      if (node < 0) {
+        coarse = true;
+        continue;
+      }
+      final int leaf = bvh.leaf[node];
+      if (null == shapes[leaf]) {
+        final PShape shape = applet.createShape();
+        shape.beginShape(PApplet.LINES);
+        shape.strokeWeight(2.0f);
+        for (int j = bvh.first[node]; j < bvh.last[node]; ++j) {
+          final int k = bvh.order[j];
+          shape.stroke(applet.color(tree.hue(k), tree.saturation(k), tree.brightness(k)));
+          shape.vertex(tree.x0[k], tree.y0[k], tree.z0[k]);
+          shape.vertex(tree.x1[k], tree.y1[k], tree.z1[k]);
+        }
+        shape.endShape();
+        shapes[leaf] = shape;
+      }
+      applet.shape(shapes[leaf]);
+    }
+    if (coarse) {
+      applet.strokeWeight(2.0f);
+      applet.beginShape(PApplet.LINES);
+      for (int i = 0; i < visible; ++i) {
+        if (visibleNodes[i] < 0) {
+          final int k = bvh.representative[~visibleNodes[i]];
+          applet.stroke(applet.color(tree.hue(k), tree.saturation(k), tree.brightness(k)));
+          applet.vertex(tree.x0[k], tree.y0[k], tree.z0[k]);
+          applet.vertex(tree.x1[k], tree.y1[k], tree.z1[k]);
+        }
+      }
+      applet.endShape();
+    }
+  }
+
+  private Bvh bvh(final Tree tree) {
+    Bvh bvh = bvhs.getIfPresent(tree);
+    if (null == bvh) {
+      if (null != topologyBvh && tree.sharesTopology(topology)) {
+        bvh = new Bvh(topologyBvh, tree);
+      } else {
+        bvh = new Bvh(tree);
+        if (null != topology && tree.sharesTopology(topology)) {
+          topologyBvh = bvh;
+        }
+      }
+      bvhs.put(tree, bvh);
+    }
+    return bvh;
+  }
+
+  private CharBuffer maybeCacheSystem(final int iterations) {
     if (null == cachedSystem || iterations != cachedIterationCount) {
-      cachedIterationCount = iterations;
-      cachedSystem = start;
-      for (int i = 0; i <= iterations; ++i) {
-        final StringBuilder builder = new StringBuilder();
-        for (int j = 0; j < cachedSystem.length(); ++j) {
-          final String rule = cachedSystem.substring(j, j + 1);
-          if (rules.containsKey(rule)) {
-            if (i < iterations) {
-              builder.append(rules.get(rule));
-            }
-          } else {
-            builder.append(rule);
-          }
+      final long start = System.nanoTime();
+      final HashCode key = symbolsKey(iterations);
+      cachedSystem = null == binaryCache ? null : binaryCache.loadSymbols(key);
+      if (null == cachedSystem) {
+        final char[] symbols = grammar.derive(iterations, parallel);
+        if (null != binaryCache && symbols.length >= MIN_PERSISTED_SYMBOLS) {
+          binaryCache.storeSymbols(key, symbols);
         }
-        cachedSystem = builder.toString();
+        cachedSystem = CharBuffer.wrap(symbols);
+      }
+      cachedIterationCount = iterations;
+      if (null != stats) {
+        stats.record(FrameStats.Phase.DERIVATION, System.nanoTime() - start);
       }
     }
     return cachedSystem;
@@ -0,0 +1,88 @@
+package lparticlesystem;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A log-linear histogram of nanosecond latencies in the style of HdrHistogram: each power of two
+ * is split into {@value #SUB_BUCKETS} linear sub-buckets, bounding the relative error of any
+ * reported percentile to about 6%.
+ */
+class LatencyHistogram {
+
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int MAGNITUDES = Long.SIZE - SUB_BUCKET_BITS;
+
+  private final AtomicLongArray counts = new AtomicLongArray((MAGNITUDES + 1) * SUB_BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong maximum = new AtomicLong();
+
+  public void record(final long nanos) {
+    final long value = Math.max(0, nanos);
+    counts.incrementAndGet(index(value));
+    count.incrementAndGet();
+    total.addAndGet(value);
+    long previous = maximum.get();
+    while (value > previous && !maximum.compareAndSet(previous, value)) {
+      previous = maximum.get();
+    }
+  }
+
+  public long getCount() {
+    return count.get();
+  }
+
+  public long getMaximum() {
+    return maximum.get();
+  }
+
+  public double getMean() {
+    final long n = count.get();
+    return 0 == n ? 0.0 : (double) total.get() / n;
+  }
+
+  public long getPercentile(final double percentile) {
+    final long n = count.get();
+    if (0 == n) {
+      return 0;
+    }
+    final long rank = Math.max(1, (long) Math.ceil(percentile / 100.0 * n));
+    long seen = 0;
+    for (int i = 0; i < counts.length(); ++i) {
+      seen += counts.get(i);
+      if (seen >= rank) {
+        return Math.min(upperBound(i), maximum.get());
+      }
+    }
+    return maximum.get();
+  }
+
+  public void reset() {
+    for (int i = 0; i < counts.length(); ++i) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    total.set(0);
+    maximum.set(0);
+  }
+
+  private static int index(final long value) {
+    if (value < SUB_BUCKETS) {
+      return (int) value;
+    }
+    final int magnitude = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS - 1;
+    final int subBucket = (int) (value >>> magnitude) - SUB_BUCKETS;
+    return (magnitude + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  private static long upperBound(final int index) {
+    if (index < SUB_BUCKETS) {
+      return index;
+    }
+    final int magnitude = index / SUB_BUCKETS - 1;
+    final long subBucket = index % SUB_BUCKETS + SUB_BUCKETS;
+    return ((subBucket + 1) << magnitude) - 1;
+  }
+}
@@ -0,0 +1,201 @@
+package lparticlesystem;
+
+import java.awt.Color;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import processing.core.PVector;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Renders a grammar's simulation, or a recording made by a {@link Recorder}, to a sequence of PNG
+ * files with the software {@link Rasterizer}, without a display.
+ */
+public class OfflineRenderer {
+
+  private static final String USAGE = "usage: OfflineRenderer <grammar.json> --out DIR"
+      + " [--frames N] [--steps-per-frame N] [--dt SECONDS] [--seed N] [--particles N]"
+      + " [--spread UNITS] [--angle-mod F] [--grow-mod F] [--parallel] [--no-branches]"
+      + " [--width N] [--height N] [--eye X Y Z] [--yaw DEG] [--pitch DEG] [--roll DEG]\n"
+      + "       OfflineRenderer <recording> --replay --out DIR [--frames N] [--width N]"
+      + " [--height N] [--eye X Y Z] [--yaw DEG] [--pitch DEG] [--roll DEG]";
+
+  private static final PVector X = new PVector(1.0f, 0.0f, 0.0f);
+  private static final PVector Y = new PVector(0.0f, 1.0f, 0.0f);
+  private static final PVector NZ = new PVector(0.0f, 0.0f, -1.0f);
+  // The sketch's perspective and background.
+  private static final float FIELD_OF_VIEW = (float) Math.PI / 3.0f;
+  private static final int BACKGROUND = Color.HSBtoRGB(300.0f / 360.0f, 1.0f, 0.19f);
+
+  public static void main(final String[] arguments) {
+    if (0 == arguments.length) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    final File file = new File(arguments[0]);
+    File out = null;
+    int frames = -1;
+    int stepsPerFrame = 1;
+    float dt = 1.0f / 60.0f;
+    long seed = 0;
+    int count = 1;
+    float spread = 0.0f;
+    float angleMod = 1.0f;
+    float growMod = 1.0f;
+    boolean parallel = false;
+    boolean branches = true;
+    boolean replay = false;
+    int width = 1024;
+    int height = 768;
+    final PVector eye = new PVector(0.0f, 0.0f, 1000.0f);
+    final Quaternion orientation = new Quaternion();
+    final Quaternion rotation = new Quaternion();
+    for (int i = 1; i < arguments.length; ++i) {
+      switch (arguments[i]) {
+        case "--out":
+          out = new File(arguments[++i]);
+          break;
+        case "--frames":
+          frames = Integer.parseInt(arguments[++i]);
+          break;
+        case "--steps-per-frame":
+          stepsPerFrame = Integer.parseInt(arguments[++i]);
+          break;
+        case "--dt":
+          dt = Float.parseFloat(arguments[++i]);
+          break;
+        case "--seed":
+          seed = Long.parseLong(arguments[++i]);
+          break;
+        case "--particles":
+          count = Integer.parseInt(arguments[++i]);
+          break;
+        case "--spread":
+          spread = Float.parseFloat(arguments[++i]);
+          break;
+        case "--angle-mod":
+          angleMod = Float.parseFloat(arguments[++i]);
+          break;
+        case "--grow-mod":
+          growMod = Float.parseFloat(arguments[++i]);
+          break;
+        case "--parallel":
+          parallel = true;
+          break;
+        case "--no-branches":
+          branches = false;
+          break;
+        case "--replay":
+          replay = true;
+          break;
+        case "--width":
+          width = Integer.parseInt(arguments[++i]);
+          break;
+        case "--height":
+          height = Integer.parseInt(arguments[++i]);
+          break;
+        case "--eye":
+          eye.set(Float.parseFloat(arguments[++i]), Float.parseFloat(arguments[++i]),
+              Float.parseFloat(arguments[++i]));
+          break;
+        case "--yaw":
+          orientation.premulLocal(rotation.setAxisAngle(Y,
+              (float) Math.toRadians(Float.parseFloat(arguments[++i])))).normalizeLocal();
+          break;
+        case "--pitch":
+          orientation.premulLocal(rotation.setAxisAngle(X,
+              (float) Math.toRadians(Float.parseFloat(arguments[++i])))).normalizeLocal();
+          break;
+        case "--roll":
+          orientation.premulLocal(rotation.setAxisAngle(NZ,
+              (float) Math.toRadians(Float.parseFloat(arguments[++i])))).normalizeLocal();
+          break;
+        default:
+          System.err.println(USAGE);
+          System.exit(1);
+      }
+    }
+    if (null == out) {
+      System.err.println(USAGE);
+      System.exit(1);
+    }
+    out.mkdirs();
+
+    final Rasterizer rasterizer = new Rasterizer(width, height);
+    final float cameraZ = height / 2.0f / (float) Math.tan(FIELD_OF_VIEW / 2.0f);
+    rasterizer.setCamera(eye, orientation, FIELD_OF_VIEW, cameraZ / 10.0f, cameraZ * 10.0f);
+    final Player player = replay ? new Player(file) : null;
+    LSystem lsystem = null;
+    if (replay) {
+      frames = frames < 0 ? player.frames() : Math.min(frames, player.frames());
+    } else {
+      frames = frames < 0 ? 60 : frames;
+      lsystem = LSystem.load(file);
+      lsystem.setParallel(parallel);
+      lsystem.modulate(angleMod, growMod);
+      lsystem.addParticles(new Random(seed), count, spread);
+    }
+
+    // PNG encoding is serial per image, so frames are encoded concurrently on their own threads
+    // while the next ones are stepped and rasterized, each into a framebuffer of its own.
+    final int encoders = Runtime.getRuntime().availableProcessors();
+    final ExecutorService encoder = Executors.newFixedThreadPool(encoders,
+        new ThreadFactoryBuilder().setNameFormat("frame-encoder-%d").setDaemon(true).build());
+    final BlockingQueue<int[]> framebuffers = new ArrayBlockingQueue<>(encoders + 1);
+    for (int i = 0; i < encoders + 1; ++i) {
+      framebuffers.add(new int[width * height]);
+    }
+    final List<Future<?>> written = new ArrayList<>();
+    long rasterNanos = 0;
+    final long start = System.nanoTime();
+    try {
+      for (int frame = 0; frame < frames; ++frame) {
+        rasterizer.clear(BACKGROUND);
+        if (replay) {
+          player.seek(frame);
+          rasterizer.draw(player);
+        } else {
+          for (int i = 0; i < stepsPerFrame; ++i) {
+            lsystem.step(dt);
+          }
+          lsystem.stage(rasterizer, branches);
+        }
+        final int[] framebuffer = framebuffers.take();
+        final long rasterStart = System.nanoTime();
+        rasterizer.render(framebuffer);
+        rasterNanos += System.nanoTime() - rasterStart;
+        final File png = new File(out, String.format("frame-%05d.png", frame));
+        written.add(encoder.submit(new Runnable() {
+
+          @Override public void run() {
+            try {
+              rasterizer.write(framebuffer, png);
+            } finally {
+              framebuffers.add(framebuffer);
+            }
+          }
+        }));
+      }
+      for (final Future<?> frame : written) {
+        frame.get();
+      }
+    } catch (final Throwable rethrown) {
+      throw Throwables.propagate(rethrown);
+    } finally {
+      encoder.shutdownNow();
+    }
+    final double seconds = (System.nanoTime() - start) / 1.0e9;
+    System.out.printf("%s: %d frames of %dx%d to %s in %.3fs (%.1f frames/s, %.3fs rasterizing)%n",
+        file.getName(), frames, width, height, out, seconds, frames / seconds,
+        rasterNanos / 1.0e9);
+  }
+}
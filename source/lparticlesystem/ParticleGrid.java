@@ -0,0 +1,80 @@
+package lparticlesystem;
+
+import java.util.Arrays;
+
+/**
+ * A uniform grid over the current particle positions, rebuilt by counting sort so that particles
+ * in the same cell are contiguous in {@code order}.
+ */
+class ParticleGrid {
+
+  private static final int PARTICLES_PER_CELL = 64;
+  private static final int MAX_RESOLUTION = 32;
+
+  public int[] order = new int[0];
+  public int[] start = new int[1];
+  private int[] cells = new int[0];
+  private int resolution = 0;
+  private float minX, minY, minZ;
+  private float cellX, cellY, cellZ;
+
+  public int cells() {
+    return resolution * resolution * resolution;
+  }
+
+  public void rebuild(final int size, final float[] x, final float[] y, final float[] z) {
+    resolution = Math.max(1, Math.min(MAX_RESOLUTION,
+        (int) Math.cbrt((double) size / PARTICLES_PER_CELL)));
+    minX = minY = minZ = Float.POSITIVE_INFINITY;
+    float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+    float maxZ = Float.NEGATIVE_INFINITY;
+    for (int i = 0; i < size; ++i) {
+      minX = Math.min(minX, x[i]);
+      minY = Math.min(minY, y[i]);
+      minZ = Math.min(minZ, z[i]);
+      maxX = Math.max(maxX, x[i]);
+      maxY = Math.max(maxY, y[i]);
+      maxZ = Math.max(maxZ, z[i]);
+    }
+    cellX = Math.max(Float.MIN_NORMAL, (maxX - minX) / resolution);
+    cellY = Math.max(Float.MIN_NORMAL, (maxY - minY) / resolution);
+    cellZ = Math.max(Float.MIN_NORMAL, (maxZ - minZ) / resolution);
+    if (order.length < size) {
+      order = new int[size];
+      cells = new int[size];
+    }
+    if (start.length < cells() + 1) {
+      start = new int[cells() + 1];
+    }
+    Arrays.fill(start, 0, cells() + 1, 0);
+    for (int i = 0; i < size; ++i) {
+      cells[i] = cell(x[i], y[i], z[i]);
+      ++start[cells[i] + 1];
+    }
+    for (int cell = 0; cell < cells(); ++cell) {
+      start[cell + 1] += start[cell];
+    }
+    for (int i = 0; i < size; ++i) {
+      order[start[cells[i]]++] = i;
+    }
+    for (int cell = cells(); cell > 0; --cell) {
+      start[cell] = start[cell - 1];
+    }
+    start[0] = 0;
+  }
+
+  public int classify(final Frustum frustum, final int cell) {
+    final int i = cell % resolution;
+    final int j = cell / resolution % resolution;
+    final int k = cell / resolution / resolution;
+    return frustum.classify(minX + i * cellX, minY + j * cellY, minZ + k * cellZ,
+        minX + (i + 1) * cellX, minY + (j + 1) * cellY, minZ + (k + 1) * cellZ);
+  }
+
+  private int cell(final float x, final float y, final float z) {
+    final int i = Math.min(resolution - 1, Math.max(0, (int) ((x - minX) / cellX)));
+    final int j = Math.min(resolution - 1, Math.max(0, (int) ((y - minY) / cellY)));
+    final int k = Math.min(resolution - 1, Math.max(0, (int) ((z - minZ) / cellZ)));
+    return (k * resolution + j) * resolution + i;
+  }
+}
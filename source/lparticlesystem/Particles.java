@@ -0,0 +1,357 @@
+package lparticlesystem;
+
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import processing.core.PApplet;
+
+/**
+ * Particles following the segments of a {@link Tree}, stored as parallel primitive arrays.
+ */
+class Particles {
+
+  private static final float MAX_LIFE = 0.02f;
+  private static final int INITIAL_CAPACITY = 1024;
+  private static final int CHUNK_SIZE = 8192;
+  private static final int NONE = -1;
+
+  private static class Births {
+    private int size = 0;
+    private int[] nodes = new int[64];
+    private float[] x = new float[64];
+    private float[] y = new float[64];
+    private float[] z = new float[64];
+
+    public void add(final int node, final float x, final float y, final float z) {
+      if (size == nodes.length) {
+        nodes = Arrays.copyOf(nodes, 2 * size);
+        this.x = Arrays.copyOf(this.x, 2 * size);
+        this.y = Arrays.copyOf(this.y, 2 * size);
+        this.z = Arrays.copyOf(this.z, 2 * size);
+      }
+      nodes[size] = node;
+      this.x[size] = x;
+      this.y[size] = y;
+      this.z[size] = z;
+      ++size;
+    }
+
+    public void clear() {
+      size = 0;
+    }
+  }
+
+  private int size = 0;
+  private int[] nodes = new int[INITIAL_CAPACITY];
+  private float[] life = new float[INITIAL_CAPACITY];
+  private float[] x = new float[INITIAL_CAPACITY];
+  private float[] y = new float[INITIAL_CAPACITY];
+  private float[] z = new float[INITIAL_CAPACITY];
+  private float[] vx = new float[INITIAL_CAPACITY];
+  private float[] vy = new float[INITIAL_CAPACITY];
+  private float[] vz = new float[INITIAL_CAPACITY];
+
+  private final ParticleGrid grid = new ParticleGrid();
+  // When tracking, the index each particle had before the last update, or NONE if it was born.
+  private int[] sources = null;
+
+  private Births[] chunkBirths = new Births[0];
+  private int[] chunkLive = new int[0];
+
+  private int lastBirths = 0;
+  private int lastDeaths = 0;
+  private long lastBookkeepingNanos = 0;
+  private boolean timing = false;
+
+  public int size() {
+    return size;
+  }
+
+  public int getLastBirths() {
+    return lastBirths;
+  }
+
+  public int getLastDeaths() {
+    return lastDeaths;
+  }
+
+  public long getLastBookkeepingNanos() {
+    return lastBookkeepingNanos;
+  }
+
+  /**
+   * Sets whether updates time their bookkeeping, which costs two clock reads per step.
+   */
+  public void setTiming(final boolean timing) {
+    this.timing = timing;
+    lastBookkeepingNanos = 0;
+  }
+
+  public long fingerprint() {
+    long hash = size;
+    for (int i = 0; i < size; ++i) {
+      hash = 31 * hash + nodes[i];
+      hash = 31 * hash + Float.floatToIntBits(x[i]);
+      hash = 31 * hash + Float.floatToIntBits(y[i]);
+      hash = 31 * hash + Float.floatToIntBits(z[i]);
+    }
+    return hash;
+  }
+
+  public void add(final Tree tree, final int node, final float x, final float y, final float z) {
+    if (size == nodes.length) {
+      grow(2 * size);
+    }
+    final int i = size++;
+    if (null != sources) {
+      sources[i] = NONE;
+    }
+    this.x[i] = x;
+    this.y[i] = y;
+    this.z[i] = z;
+    aim(tree, i, node);
+  }
+
+  public void setTracking(final boolean tracking) {
+    sources = tracking ? new int[nodes.length] : null;
+    if (tracking) {
+      Arrays.fill(sources, NONE);
+    }
+  }
+
+  public int source(final int i) {
+    return sources[i];
+  }
+
+  public int node(final int i) {
+    return nodes[i];
+  }
+
+  public float x(final int i) {
+    return x[i];
+  }
+
+  public float y(final int i) {
+    return y[i];
+  }
+
+  public float z(final int i) {
+    return z[i];
+  }
+
+  public void copyFrom(final Particles that) {
+    if (nodes.length < that.size) {
+      grow(that.nodes.length);
+    }
+    size = that.size;
+    System.arraycopy(that.nodes, 0, nodes, 0, size);
+    System.arraycopy(that.life, 0, life, 0, size);
+    System.arraycopy(that.x, 0, x, 0, size);
+    System.arraycopy(that.y, 0, y, 0, size);
+    System.arraycopy(that.z, 0, z, 0, size);
+    System.arraycopy(that.vx, 0, vx, 0, size);
+    System.arraycopy(that.vy, 0, vy, 0, size);
+    System.arraycopy(that.vz, 0, vz, 0, size);
+  }
+
+  public void update(final Tree tree, final float dt, final boolean parallel) {
+    if (parallel && size >= 2 * CHUNK_SIZE) {
+      updateInParallel(tree, dt);
+      return;
+    }
+    final int count = size;
+    final int live = step(tree, 0, count, dt, null);
+    final long start = timing ? System.nanoTime() : 0;
+    final int born = size - count;
+    if (live != count) {
+      move(count, live, born);
+      size = live + born;
+    }
+    lastBirths = born;
+    lastDeaths = count - live;
+    if (timing) {
+      lastBookkeepingNanos = System.nanoTime() - start;
+    }
+  }
+
+  private void updateInParallel(final Tree tree, final float dt) {
+    final int count = size;
+    final int chunks = (count + CHUNK_SIZE - 1) / CHUNK_SIZE;
+    if (chunkBirths.length < chunks) {
+      final int previous = chunkBirths.length;
+      chunkBirths = Arrays.copyOf(chunkBirths, chunks);
+      for (int i = previous; i < chunks; ++i) {
+        chunkBirths[i] = new Births();
+      }
+      chunkLive = new int[chunks];
+    }
+    Workers.POOL.invoke(new Step(tree, dt, 0, chunks));
+    final long start = timing ? System.nanoTime() : 0;
+    int live = 0;
+    for (int i = 0; i < chunks; ++i) {
+      move(i * CHUNK_SIZE, live, chunkLive[i]);
+      live += chunkLive[i];
+    }
+    size = live;
+    for (int i = 0; i < chunks; ++i) {
+      final Births births = chunkBirths[i];
+      for (int j = 0; j < births.size; ++j) {
+        add(tree, births.nodes[j], births.x[j], births.y[j], births.z[j]);
+      }
+      births.clear();
+    }
+    lastBirths = size - live;
+    lastDeaths = count - live;
+    if (timing) {
+      lastBookkeepingNanos = System.nanoTime() - start;
+    }
+  }
+
+  private int step(final Tree tree, final int begin, final int end, final float dt,
+      final Births births) {
+    int live = begin;
+    for (int i = begin; i < end; ++i) {
+      x[i] += vx[i] * dt;
+      y[i] += vy[i] * dt;
+      z[i] += vz[i] * dt;
+      life[i] += dt;
+      if (life[i] > MAX_LIFE) {
+        final int child = tree.firstChild[nodes[i]];
+        if (Tree.NONE == child) {
+          continue;
+        }
+        for (int j = tree.nextSibling[child]; Tree.NONE != j; j = tree.nextSibling[j]) {
+          if (null == births) {
+            add(tree, j, x[i], y[i], z[i]);
+          } else {
+            births.add(j, x[i], y[i], z[i]);
+          }
+        }
+        aim(tree, i, child);
+      }
+      if (live != i) {
+        copy(i, live);
+      }
+      if (null != sources) {
+        sources[live] = i;
+      }
+      ++live;
+    }
+    return live;
+  }
+
+  @SuppressWarnings("serial")
+  private class Step extends RecursiveAction {
+    private final Tree tree;
+    private final float dt;
+    private final int begin;
+    private final int end;
+
+    public Step(final Tree tree, final float dt, final int begin, final int end) {
+      this.tree = tree;
+      this.dt = dt;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override protected void compute() {
+      if (end - begin > 1) {
+        final int middle = (begin + end) >>> 1;
+        invokeAll(new Step(tree, dt, begin, middle), new Step(tree, dt, middle, end));
+      } else {
+        final int first = begin * CHUNK_SIZE;
+        final int last = Math.min(first + CHUNK_SIZE, size);
+        chunkLive[begin] = step(tree, first, last, dt, chunkBirths[begin]) - first;
+      }
+    }
+  }
+
+  public void draw(final Tree tree, final PApplet applet) {
+    draw(tree, applet, null);
+  }
+
+  /**
+   * Draws the particles inside {@code frustum}, or all of them when it is null, skipping whole
+   * grid cells outside it.
+   */
+  public void draw(final Tree tree, final PApplet applet, final Frustum frustum) {
+    applet.strokeWeight(10.0f);
+    applet.beginShape(PApplet.POINTS);
+    if (null == frustum) {
+      for (int i = 0; i < size; ++i) {
+        vertex(tree, applet, i);
+      }
+    } else {
+      grid.rebuild(size, x, y, z);
+      for (int cell = 0; cell < grid.cells(); ++cell) {
+        if (grid.start[cell] == grid.start[cell + 1]) {
+          continue;
+        }
+        final int side = grid.classify(frustum, cell);
+        if (Frustum.OUTSIDE == side) {
+          continue;
+        }
+        for (int j = grid.start[cell]; j < grid.start[cell + 1]; ++j) {
+          final int i = grid.order[j];
+          if (Frustum.INSIDE == side || frustum.contains(x[i], y[i], z[i])) {
+            vertex(tree, applet, i);
+          }
+        }
+      }
+    }
+    applet.endShape();
+  }
+
+  private void vertex(final Tree tree, final PApplet applet, final int i) {
+    final int node = nodes[i];
+    applet.stroke(applet.color(tree.hue(node), tree.saturation(node), tree.brightness(node)));
+    applet.vertex(x[i], y[i], z[i]);
+  }
+
+  private void aim(final Tree tree, final int i, final int node) {
+    nodes[i] = node;
+    life[i] = 0.0f;
+    vx[i] = (tree.x1[node] - tree.x0[node]) / MAX_LIFE;
+    vy[i] = (tree.y1[node] - tree.y0[node]) / MAX_LIFE;
+    vz[i] = (tree.z1[node] - tree.z0[node]) / MAX_LIFE;
+  }
+
+  private void copy(final int from, final int to) {
+    nodes[to] = nodes[from];
+    life[to] = life[from];
+    x[to] = x[from];
+    y[to] = y[from];
+    z[to] = z[from];
+    vx[to] = vx[from];
+    vy[to] = vy[from];
+    vz[to] = vz[from];
+  }
+
+  private void move(final int from, final int to, final int length) {
+    if (null != sources) {
+      System.arraycopy(sources, from, sources, to, length);
+    }
+    System.arraycopy(nodes, from, nodes, to, length);
+    System.arraycopy(life, from, life, to, length);
+    System.arraycopy(x, from, x, to, length);
+    System.arraycopy(y, from, y, to, length);
+    System.arraycopy(z, from, z, to, length);
+    System.arraycopy(vx, from, vx, to, length);
+    System.arraycopy(vy, from, vy, to, length);
+    System.arraycopy(vz, from, vz, to, length);
+  }
+
+  private void grow(final int capacity) {
+    if (null != sources) {
+      sources = Arrays.copyOf(sources, capacity);
+    }
+    nodes = Arrays.copyOf(nodes, capacity);
+    life = Arrays.copyOf(life, capacity);
+    x = Arrays.copyOf(x, capacity);
+    y = Arrays.copyOf(y, capacity);
+    z = Arrays.copyOf(z, capacity);
+    vx = Arrays.copyOf(vx, capacity);
+    vy = Arrays.copyOf(vy, capacity);
+    vz = Arrays.copyOf(vz, capacity);
+  }
+}
@@ -0,0 +1,251 @@
+package lparticlesystem;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import processing.core.PApplet;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Replays a stream written by a {@link Recorder} from a memory-mapped file. Seeking decodes
+ * forward from the nearest keyframe, so any frame costs at most one keyframe interval of decoding
+ * and never a re-simulation.
+ *
+ * <p>Recordings can outgrow what one buffer can map, so only the span between the keyframes
+ * around the current frame is mapped at a time, or the frame alone if even that is too large.
+ */
+class Player {
+
+  private final Path path;
+  private final float quantum;
+  private final int keyframeInterval;
+  private final long[] offsets;
+  // Where the index starts, which is also where the last frame ends.
+  private final long index;
+  private MappedByteBuffer window = null;
+  private long windowStart = 0;
+  private int frame = -1;
+  private long step = 0;
+  private int size = 0;
+  private int[] x = new int[0], y = new int[0], z = new int[0], colors = new int[0];
+  private int[] nextX = new int[0], nextY = new int[0], nextZ = new int[0];
+  private int[] nextColors = new int[0];
+  private boolean[] died = new boolean[0];
+
+  public Player(final File file) {
+    path = file.toPath();
+    try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+      final long size = channel.size();
+      Preconditions.checkArgument(size >= Recorder.HEADER_BYTES + Recorder.FOOTER_BYTES,
+          "%s is not a finished recording", file);
+      final ByteBuffer header = map(channel, 0, Recorder.HEADER_BYTES);
+      final ByteBuffer footer = map(channel, size - Recorder.FOOTER_BYTES, Recorder.FOOTER_BYTES);
+      Preconditions.checkArgument(Recorder.MAGIC == header.getInt(0)
+          && Recorder.MAGIC == footer.getInt(Recorder.FOOTER_BYTES - 4),
+          "%s is not a finished recording", file);
+      Preconditions.checkArgument(Recorder.VERSION == header.getInt(4),
+          "%s has unsupported version %s", file, header.getInt(4));
+      quantum = header.getFloat(8);
+      keyframeInterval = header.getInt(12);
+      Preconditions.checkArgument(keyframeInterval > 0, "%s has a keyframe interval of %s", file,
+          keyframeInterval);
+      index = footer.getLong(0);
+      offsets = new long[footer.getInt(8)];
+      Preconditions.checkArgument(index >= Recorder.HEADER_BYTES
+          && index + 8L * offsets.length == size - Recorder.FOOTER_BYTES,
+          "%s has a corrupt index", file);
+      map(channel, index, 8L * offsets.length).asLongBuffer().get(offsets);
+    } catch (final Throwable rethrown) {
+      throw Throwables.propagate(rethrown);
+    }
+  }
+
+  public int frames() {
+    return offsets.length;
+  }
+
+  public int frame() {
+    return frame;
+  }
+
+  public long step() {
+    return step;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public float x(final int i) {
+    return decode(x[i]);
+  }
+
+  public float y(final int i) {
+    return decode(y[i]);
+  }
+
+  public float z(final int i) {
+    return decode(z[i]);
+  }
+
+  public float hue(final int i) {
+    return (colors[i] >>> 16) * 360.0f / 0xffff;
+  }
+
+  public float saturation(final int i) {
+    return (colors[i] >>> 8 & 0xff) / 255.0f;
+  }
+
+  public float brightness(final int i) {
+    return (colors[i] & 0xff) / 255.0f;
+  }
+
+  public void seek(final int target) {
+    Preconditions.checkElementIndex(target, offsets.length);
+    if (target < frame || target / keyframeInterval > frame / keyframeInterval) {
+      frame = target / keyframeInterval * keyframeInterval - 1;
+    }
+    while (frame < target) {
+      decodeFrame(++frame);
+    }
+  }
+
+  public void draw(final PApplet applet) {
+    applet.colorMode(PApplet.HSB, 360.0f, 1.0f, 1.0f);
+    applet.strokeWeight(10.0f);
+    applet.beginShape(PApplet.POINTS);
+    for (int i = 0; i < size; ++i) {
+      applet.stroke(applet.color(hue(i), saturation(i), brightness(i)));
+      applet.vertex(x(i), y(i), z(i));
+    }
+    applet.endShape();
+  }
+
+  private float decode(final int value) {
+    return 0.0f == quantum ? Float.intBitsToFloat(value) : value * quantum;
+  }
+
+  private void decodeFrame(final int index) {
+    final ByteBuffer in = frame(index);
+    final boolean keyframe = Recorder.KEYFRAME == in.get();
+    step = getVarLong(in);
+    final int n = getVarInt(in);
+    if (nextX.length < n) {
+      final int capacity = Math.max(n, 2 * nextX.length);
+      nextX = new int[capacity];
+      nextY = new int[capacity];
+      nextZ = new int[capacity];
+      nextColors = new int[capacity];
+    }
+    int survivors = 0;
+    if (!keyframe) {
+      survivors = getVarInt(in);
+      final int deaths = getVarInt(in);
+      if (died.length < size) {
+        died = new boolean[Math.max(size, 2 * died.length)];
+      }
+      Arrays.fill(died, 0, size, false);
+      int last = 0;
+      for (int i = 0; i < deaths; ++i) {
+        last += getVarInt(in);
+        died[last] = true;
+      }
+      int source = 0;
+      for (int i = 0; i < survivors; ++i) {
+        while (died[source]) {
+          ++source;
+        }
+        nextX[i] = x[source] + unzigzag(getVarInt(in));
+        nextY[i] = y[source] + unzigzag(getVarInt(in));
+        nextZ[i] = z[source] + unzigzag(getVarInt(in));
+        final long color = getVarLong(in);
+        nextColors[i] = 0 == color ? colors[source] : (int) (color - 1);
+        ++source;
+      }
+    }
+    for (int i = survivors; i < n; ++i) {
+      nextX[i] = unzigzag(getVarInt(in));
+      nextY[i] = unzigzag(getVarInt(in));
+      nextZ[i] = unzigzag(getVarInt(in));
+      nextColors[i] = (int) getVarLong(in);
+    }
+    size = n;
+    int[] swap = x;
+    x = nextX;
+    nextX = swap;
+    swap = y;
+    y = nextY;
+    nextY = swap;
+    swap = z;
+    z = nextZ;
+    nextZ = swap;
+    swap = colors;
+    colors = nextColors;
+    nextColors = swap;
+  }
+
+  /**
+   * Returns the bytes of frame {@code index}, remapping the window if it does not hold them.
+   */
+  private ByteBuffer frame(final int index) {
+    final long begin = offsets[index];
+    final long end = end(index);
+    if (null == window || begin < windowStart || end > windowStart + window.capacity()) {
+      final int last = Math.min((index / keyframeInterval + 1) * keyframeInterval,
+          offsets.length) - 1;
+      final long stop = end(last) - begin <= Integer.MAX_VALUE ? end(last) : end;
+      window = null;
+      try (final FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+        window = map(channel, begin, stop - begin);
+      } catch (final Throwable rethrown) {
+        throw Throwables.propagate(rethrown);
+      }
+      windowStart = begin;
+    }
+    final ByteBuffer in = window.duplicate();
+    in.position((int) (begin - windowStart));
+    in.limit((int) (end - windowStart));
+    return in;
+  }
+
+  private long end(final int index) {
+    return index + 1 < offsets.length ? offsets[index + 1] : this.index;
+  }
+
+  private static MappedByteBuffer map(final FileChannel channel, final long position,
+      final long size) throws IOException {
+    Preconditions.checkArgument(size <= Integer.MAX_VALUE, "%s bytes are too many to map", size);
+    final MappedByteBuffer mapped = channel.map(MapMode.READ_ONLY, position, size);
+    mapped.order(ByteOrder.LITTLE_ENDIAN);
+    return mapped;
+  }
+
+  private static int unzigzag(final int value) {
+    return (value >>> 1) ^ -(value & 1);
+  }
+
+  private static int getVarInt(final ByteBuffer in) {
+    return (int) getVarLong(in);
+  }
+
+  private static long getVarLong(final ByteBuffer in) {
+    long value = 0;
+    for (int shift = 0;; shift += 7) {
+      final byte b = in.get();
+      value |= (long) (b & 0x7f) << shift;
+      if (b >= 0) {
+        return value;
+      }
+    }
+  }
+}
@@ -47,10 +47,25 @@ class Quaternion {
     return new Quaternion(w, x, y, z);
   }
 
+  public Quaternion set(final float w, final float x, final float y, final float z) {
+    this.x = x;
+    this.y = y;
+    this.z = z;
+    this.w = w;
+    return this;
+  }
+
+  public Quaternion set(final Quaternion that) {
+    return set(that.w, that.x, that.y, that.z);
+  }
+
   public static Quaternion fromAxisAngle(final PVector axis, final float angle) {
-    final PVector normalizedAxis = axis.get();
-    normalizedAxis.setMag((float) Math.sin(angle / 2.0f));
-    return new Quaternion((float) Math.cos(angle / 2.0f), normalizedAxis);
+    return new Quaternion().setAxisAngle(axis, angle);
+  }
+
+  public Quaternion setAxisAngle(final PVector axis, final float angle) {
+    final float scale = (float) Math.sin(angle / 2.0f) / axis.mag();
+    return set((float) Math.cos(angle / 2.0f), axis.x * scale, axis.y * scale, axis.z * scale);
   }
 
   public static Quaternion ln(final Quaternion q) {
@@ -91,10 +106,19 @@ class Quaternion {
     return over(magnitude());
   }
 
+  public Quaternion normalizeLocal() {
+    final float magnitude = magnitude();
+    return set(w / magnitude, x / magnitude, y / magnitude, z / magnitude);
+  }
+
   public Quaternion conjugate() {
     return new Quaternion(w, -x, -y, -z);
   }
 
+  public Quaternion conjugateInto(final Quaternion out) {
+    return out.set(w, -x, -y, -z);
+  }
+
   public Quaternion reciprocal() {
     return conjugate().over(magnitudeSquared());
   }
@@ -132,14 +156,24 @@ class Quaternion {
   }
 
   public Quaternion times(final Quaternion that) {
-    final PVector vector0 = that.vector();
-    vector0.mult(w);
-    final PVector vector1 = vector();
-    vector1.mult(that.w);
-    final PVector vector2 = vector().cross(that.vector());
-    vector0.add(vector1);
-    vector0.add(vector2);
-    return new Quaternion(w * that.w - vector().dot(that.vector()), vector0);
+    return multiply(this, that, new Quaternion());
+  }
+
+  public Quaternion mulLocal(final Quaternion that) {
+    return multiply(this, that, this);
+  }
+
+  public Quaternion premulLocal(final Quaternion that) {
+    return multiply(that, this, this);
+  }
+
+  private static Quaternion multiply(
+      final Quaternion a, final Quaternion b, final Quaternion out) {
+    return out.set(
+        a.w * b.w - (a.x * b.x + a.y * b.y + a.z * b.z),
+        a.w * b.x + b.w * a.x + (a.y * b.z - a.z * b.y),
+        a.w * b.y + b.w * a.y + (a.z * b.x - a.x * b.z),
+        a.w * b.z + b.w * a.z + (a.x * b.y - a.y * b.x));
   }
 
   public Quaternion over(final float that) {
@@ -155,6 +189,30 @@ class Quaternion {
   }
 
   public PVector transform(final PVector that) {
-    return times(that).times(reciprocal()).vector();
+    return transformInto(that, new PVector());
+  }
+
+  public PVector transformInto(final PVector that, final PVector out) {
+    final float inverse = 1.0f / magnitudeSquared();
+    final float tw = -(x * that.x + y * that.y + z * that.z);
+    final float tx = w * that.x + (y * that.z - z * that.y);
+    final float ty = w * that.y + (z * that.x - x * that.z);
+    final float tz = w * that.z + (x * that.y - y * that.x);
+    out.set(
+        (-tw * x + w * tx + (-ty * z + tz * y)) * inverse,
+        (-tw * y + w * ty + (-tz * x + tx * z)) * inverse,
+        (-tw * z + w * tz + (-tx * y + ty * x)) * inverse);
+    return out;
+  }
+
+  public PVector rotateInto(final PVector that, final PVector out) {
+    final float cx = 2.0f * (y * that.z - z * that.y);
+    final float cy = 2.0f * (z * that.x - x * that.z);
+    final float cz = 2.0f * (x * that.y - y * that.x);
+    out.set(
+        that.x + w * cx + (y * cz - z * cy),
+        that.y + w * cy + (z * cx - x * cz),
+        that.z + w * cz + (x * cy - y * cx));
+    return out;
   }
 }
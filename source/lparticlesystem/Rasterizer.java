@@ -0,0 +1,435 @@
+package lparticlesystem;
+
+import java.awt.Color;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.RecursiveAction;
+
+import javax.imageio.ImageIO;
+
+import processing.core.PVector;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Draws lines and points into RGB framebuffers in software, for exporting frames where there is
+ * no display. Staged primitives are projected in parallel, binned by the screen tiles they touch
+ * and rasterized one tile per task, so no two workers ever write the same pixel and the result
+ * does not depend on how many there are.
+ */
+class Rasterizer {
+
+  public static final int TILE_SIZE = 32;
+
+  private static final int CHUNK_SIZE = 8192;
+
+  public final int width;
+  public final int height;
+  // The reciprocal of each pixel's view depth, linear in screen space; 0 is infinitely far.
+  private final float[] depths;
+  private final int tilesX;
+  private final int tilesY;
+  private final int[] tileStart;
+
+  private final PVector eye = new PVector();
+  private final Quaternion orientation = new Quaternion();
+  private float focal;
+  private float near;
+  private float far;
+  private int background = 0;
+
+  private int size = 0;
+  private float[] world = new float[0];
+  private float[] hsb = new float[0];
+  private float[] weights = new float[0];
+  private float[] screen = new float[0];
+  private int[] colors = new int[0];
+  // The tiles each primitive touches as min x, min y, max x, max y, or an empty range if none.
+  private int[] tiles = new int[0];
+  private int[] binned = new int[0];
+  private int[] pixels = null;
+
+  public Rasterizer(final int width, final int height) {
+    this.width = width;
+    this.height = height;
+    depths = new float[width * height];
+    tilesX = (width + TILE_SIZE - 1) / TILE_SIZE;
+    tilesY = (height + TILE_SIZE - 1) / TILE_SIZE;
+    tileStart = new int[tilesX * tilesY + 1];
+  }
+
+  /**
+   * Looks from {@code eye} with the sketch's camera model: {@code orientation} rotates the world
+   * into view space, where the camera faces -z with +y down the screen.
+   */
+  public Rasterizer setCamera(final PVector eye, final Quaternion orientation, final float fovy,
+      final float near, final float far) {
+    this.eye.set(eye);
+    this.orientation.set(orientation);
+    focal = height / 2.0f / (float) Math.tan(fovy / 2.0f);
+    this.near = near;
+    this.far = far;
+    return this;
+  }
+
+  /**
+   * Discards the staged primitives and sets the color of the next frame's background.
+   */
+  public void clear(final int background) {
+    this.background = background;
+    size = 0;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  /**
+   * Stages a line {@code weight} pixels wide. A line whose ends coincide is drawn as a round dot.
+   */
+  public void line(final float x0, final float y0, final float z0, final float x1,
+      final float y1, final float z1, final float hue, final float saturation,
+      final float brightness, final float weight) {
+    reserve(size + 1);
+    set(size++, x0, y0, z0, x1, y1, z1, hue, saturation, brightness, weight);
+  }
+
+  public void point(final float x, final float y, final float z, final float hue,
+      final float saturation, final float brightness, final float weight) {
+    line(x, y, z, x, y, z, hue, saturation, brightness, weight);
+  }
+
+  /**
+   * Stages {@code particles}, colored by the segments of {@code tree} they follow, and the
+   * segments themselves when {@code branches} is set, with the stroke weights the sketch uses.
+   */
+  public void draw(final Tree tree, final Particles particles, final boolean branches) {
+    final int first = size;
+    final int segments = branches ? tree.size() : 0;
+    reserve(first + segments + particles.size());
+    size = first + segments + particles.size();
+    Workers.POOL.invoke(new Stage(tree, particles, first, segments, 0,
+        (size - first + CHUNK_SIZE - 1) / CHUNK_SIZE));
+  }
+
+  public void draw(final Player player) {
+    for (int i = 0; i < player.size(); ++i) {
+      point(player.x(i), player.y(i), player.z(i), player.hue(i), player.saturation(i),
+          player.brightness(i), 10.0f);
+    }
+  }
+
+  /**
+   * Rasterizes the staged primitives into {@code frame}, which holds {@code width * height} RGB
+   * pixels row by row. The rasterizer keeps no reference to it afterwards, so frames can be
+   * encoded while the next one is drawn into another.
+   */
+  public void render(final int[] frame) {
+    Preconditions.checkArgument(frame.length == width * height,
+        "Expected %s pixels but got %s", width * height, frame.length);
+    pixels = frame;
+    try {
+      Workers.POOL.invoke(new Project(0, (size + CHUNK_SIZE - 1) / CHUNK_SIZE));
+      bin();
+      Workers.POOL.invoke(new Shade(0, tilesX * tilesY));
+    } finally {
+      pixels = null;
+    }
+  }
+
+  public BufferedImage toImage(final int[] frame) {
+    final BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    image.setRGB(0, 0, width, height, frame, 0, width);
+    return image;
+  }
+
+  public void write(final int[] frame, final File file) {
+    try {
+      ImageIO.write(toImage(frame), "png", file);
+    } catch (final Throwable rethrown) {
+      throw Throwables.propagate(rethrown);
+    }
+  }
+
+  private void reserve(final int capacity) {
+    if (capacity <= weights.length) {
+      return;
+    }
+    final int grown = Math.max(capacity, Math.max(1024, 2 * weights.length));
+    world = Arrays.copyOf(world, 6 * grown);
+    hsb = Arrays.copyOf(hsb, 3 * grown);
+    weights = Arrays.copyOf(weights, grown);
+    screen = new float[6 * grown];
+    colors = new int[grown];
+    tiles = new int[4 * grown];
+  }
+
+  private void set(final int k, final float x0, final float y0, final float z0, final float x1,
+      final float y1, final float z1, final float hue, final float saturation,
+      final float brightness, final float weight) {
+    final int i = 6 * k;
+    world[i] = x0;
+    world[i + 1] = y0;
+    world[i + 2] = z0;
+    world[i + 3] = x1;
+    world[i + 4] = y1;
+    world[i + 5] = z1;
+    hsb[3 * k] = hue;
+    hsb[3 * k + 1] = saturation;
+    hsb[3 * k + 2] = brightness;
+    weights[k] = weight;
+  }
+
+  private void stage(final Tree tree, final Particles particles, final int first,
+      final int segments, final int begin, final int end) {
+    for (int k = begin; k < end; ++k) {
+      final int i = k - first;
+      if (i < segments) {
+        set(k, tree.x0[i], tree.y0[i], tree.z0[i], tree.x1[i], tree.y1[i], tree.z1[i],
+            tree.hue(i), tree.saturation(i), tree.brightness(i), 2.0f);
+      } else {
+        final int j = i - segments;
+        final int node = particles.node(j);
+        set(k, particles.x(j), particles.y(j), particles.z(j), particles.x(j), particles.y(j),
+            particles.z(j), tree.hue(node), tree.saturation(node), tree.brightness(node), 10.0f);
+      }
+    }
+  }
+
+  private void project(final int begin, final int end) {
+    final PVector in = new PVector();
+    final PVector start = new PVector();
+    final PVector stop = new PVector();
+    for (int k = begin; k < end; ++k) {
+      final int i = 6 * k;
+      in.set(world[i] - eye.x, world[i + 1] - eye.y, world[i + 2] - eye.z);
+      orientation.rotateInto(in, start);
+      in.set(world[i + 3] - eye.x, world[i + 4] - eye.y, world[i + 5] - eye.z);
+      orientation.rotateInto(in, stop);
+      Arrays.fill(tiles, 4 * k, 4 * k + 4, 0);
+      tiles[4 * k + 2] = tiles[4 * k + 3] = -1;
+      float a = -start.z;
+      float b = -stop.z;
+      if ((a < near && b < near) || (a > far && b > far)) {
+        continue;
+      }
+      if (a < near) {
+        lerp(start, stop, (near - a) / (b - a));
+        a = near;
+      } else if (b < near) {
+        lerp(stop, start, (near - b) / (a - b));
+        b = near;
+      }
+      screen[i] = width / 2.0f + focal * start.x / a;
+      screen[i + 1] = height / 2.0f + focal * start.y / a;
+      screen[i + 2] = 1.0f / a;
+      screen[i + 3] = width / 2.0f + focal * stop.x / b;
+      screen[i + 4] = height / 2.0f + focal * stop.y / b;
+      screen[i + 5] = 1.0f / b;
+      final float radius = weights[k] / 2.0f + 1.0f;
+      final float minX = Math.min(screen[i], screen[i + 3]) - radius;
+      final float minY = Math.min(screen[i + 1], screen[i + 4]) - radius;
+      final float maxX = Math.max(screen[i], screen[i + 3]) + radius;
+      final float maxY = Math.max(screen[i + 1], screen[i + 4]) + radius;
+      if (maxX < 0.0f || maxY < 0.0f || minX >= width || minY >= height) {
+        continue;
+      }
+      tiles[4 * k] = (int) Math.max(0.0f, minX) / TILE_SIZE;
+      tiles[4 * k + 1] = (int) Math.max(0.0f, minY) / TILE_SIZE;
+      tiles[4 * k + 2] = (int) Math.min(width - 1, maxX) / TILE_SIZE;
+      tiles[4 * k + 3] = (int) Math.min(height - 1, maxY) / TILE_SIZE;
+      colors[k] = Color.HSBtoRGB(hsb[3 * k] / 360.0f, hsb[3 * k + 1], hsb[3 * k + 2]);
+    }
+  }
+
+  private static void lerp(final PVector from, final PVector to, final float t) {
+    from.set(from.x + t * (to.x - from.x), from.y + t * (to.y - from.y),
+        from.z + t * (to.z - from.z));
+  }
+
+  /**
+   * Lists the primitives touching each tile contiguously in {@code binned}, in staging order so
+   * that ties in depth resolve the same way on every run.
+   */
+  private void bin() {
+    Arrays.fill(tileStart, 0);
+    int total = 0;
+    for (int k = 0; k < size; ++k) {
+      for (int ty = tiles[4 * k + 1]; ty <= tiles[4 * k + 3]; ++ty) {
+        for (int tx = tiles[4 * k]; tx <= tiles[4 * k + 2]; ++tx) {
+          ++tileStart[ty * tilesX + tx + 1];
+          ++total;
+        }
+      }
+    }
+    for (int tile = 0; tile < tilesX * tilesY; ++tile) {
+      tileStart[tile + 1] += tileStart[tile];
+    }
+    if (binned.length < total) {
+      binned = new int[Math.max(total, 2 * binned.length)];
+    }
+    for (int k = 0; k < size; ++k) {
+      for (int ty = tiles[4 * k + 1]; ty <= tiles[4 * k + 3]; ++ty) {
+        for (int tx = tiles[4 * k]; tx <= tiles[4 * k + 2]; ++tx) {
+          binned[tileStart[ty * tilesX + tx]++] = k;
+        }
+      }
+    }
+    for (int tile = tilesX * tilesY; tile > 0; --tile) {
+      tileStart[tile] = tileStart[tile - 1];
+    }
+    tileStart[0] = 0;
+  }
+
+  private void shade(final int tile) {
+    final int left = tile % tilesX * TILE_SIZE;
+    final int top = tile / tilesX * TILE_SIZE;
+    final int right = Math.min(width, left + TILE_SIZE);
+    final int bottom = Math.min(height, top + TILE_SIZE);
+    for (int y = top; y < bottom; ++y) {
+      Arrays.fill(pixels, y * width + left, y * width + right, background);
+      Arrays.fill(depths, y * width + left, y * width + right, 0.0f);
+    }
+    for (int j = tileStart[tile]; j < tileStart[tile + 1]; ++j) {
+      final int k = binned[j];
+      final int i = 6 * k;
+      final float x0 = screen[i], y0 = screen[i + 1], z0 = screen[i + 2];
+      final float x1 = screen[i + 3], y1 = screen[i + 4], z1 = screen[i + 5];
+      final float radius = weights[k] / 2.0f;
+      if (x0 == x1 && y0 == y1) {
+        dot(x0, y0, z0, radius, colors[k], left, top, right, bottom);
+      } else if (Math.abs(x1 - x0) >= Math.abs(y1 - y0)) {
+        span(x0, y0, z0, x1, y1, z1, radius, colors[k], left, top, right, bottom, false);
+      } else {
+        span(y0, x0, z0, y1, x1, z1, radius, colors[k], top, left, bottom, right, true);
+      }
+    }
+  }
+
+  private void dot(final float x, final float y, final float z, final float radius,
+      final int color, final int left, final int top, final int right, final int bottom) {
+    final int minX = Math.max(left, (int) Math.ceil(x - radius - 0.5f));
+    final int maxX = Math.min(right - 1, (int) Math.floor(x + radius - 0.5f));
+    final int minY = Math.max(top, (int) Math.ceil(y - radius - 0.5f));
+    final int maxY = Math.min(bottom - 1, (int) Math.floor(y + radius - 0.5f));
+    for (int py = minY; py <= maxY; ++py) {
+      final float dy = py + 0.5f - y;
+      for (int px = minX; px <= maxX; ++px) {
+        final float dx = px + 0.5f - x;
+        if (dx * dx + dy * dy <= radius * radius) {
+          plot(px, py, z, color);
+        }
+      }
+    }
+  }
+
+  /**
+   * Walks a line along its major axis {@code u}, filling a run across the minor axis {@code v}
+   * wide enough to give the line its weight perpendicular to its direction. When
+   * {@code transposed}, {@code u} is screen y.
+   */
+  private void span(final float u0, final float v0, final float z0, final float u1,
+      final float v1, final float z1, final float radius, final int color, final int minU,
+      final int minV, final int maxU, final int maxV, final boolean transposed) {
+    final float du = u1 - u0;
+    final float dv = v1 - v0;
+    final float extent = radius * (float) Math.sqrt(du * du + dv * dv) / Math.abs(du);
+    final int first = Math.max(minU, (int) Math.ceil(Math.min(u0, u1) - 1.0f));
+    final int last = Math.min(maxU - 1, (int) Math.floor(Math.max(u0, u1)));
+    for (int u = first; u <= last; ++u) {
+      final float t = Math.max(0.0f, Math.min(1.0f, (u + 0.5f - u0) / du));
+      final float v = v0 + t * dv;
+      final float z = z0 + t * (z1 - z0);
+      final int low = Math.max(minV, (int) Math.ceil(v - extent - 0.5f));
+      final int high = Math.min(maxV - 1, (int) Math.floor(v + extent - 0.5f));
+      for (int w = low; w <= high; ++w) {
+        if (transposed) {
+          plot(w, u, z, color);
+        } else {
+          plot(u, w, z, color);
+        }
+      }
+    }
+  }
+
+  private void plot(final int x, final int y, final float z, final int color) {
+    final int i = y * width + x;
+    if (z > depths[i]) {
+      depths[i] = z;
+      pixels[i] = color;
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private class Stage extends RecursiveAction {
+    private final Tree tree;
+    private final Particles particles;
+    private final int first;
+    private final int segments;
+    private final int begin;
+    private final int end;
+
+    public Stage(final Tree tree, final Particles particles, final int first, final int segments,
+        final int begin, final int end) {
+      this.tree = tree;
+      this.particles = particles;
+      this.first = first;
+      this.segments = segments;
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override protected void compute() {
+      if (end - begin > 1) {
+        final int middle = (begin + end) >>> 1;
+        invokeAll(new Stage(tree, particles, first, segments, begin, middle),
+            new Stage(tree, particles, first, segments, middle, end));
+      } else if (end > begin) {
+        stage(tree, particles, first, segments, first + begin * CHUNK_SIZE,
+            Math.min(size, first + end * CHUNK_SIZE));
+      }
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private class Project extends RecursiveAction {
+    private final int begin;
+    private final int end;
+
+    public Project(final int begin, final int end) {
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override protected void compute() {
+      if (end - begin > 1) {
+        final int middle = (begin + end) >>> 1;
+        invokeAll(new Project(begin, middle), new Project(middle, end));
+      } else if (end > begin) {
+        project(begin * CHUNK_SIZE, Math.min(size, end * CHUNK_SIZE));
+      }
+    }
+  }
+
+  @SuppressWarnings("serial")
+  private class Shade extends RecursiveAction {
+    private final int begin;
+    private final int end;
+
+    public Shade(final int begin, final int end) {
+      this.begin = begin;
+      this.end = end;
+    }
+
+    @Override protected void compute() {
+      if (end - begin > 1) {
+        final int middle = (begin + end) >>> 1;
+        invokeAll(new Shade(begin, middle), new Shade(middle, end));
+      } else if (end > begin) {
+        shade(begin);
+      }
+    }
+  }
+}
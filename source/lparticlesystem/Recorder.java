@@ -0,0 +1,235 @@
+package lparticlesystem;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+
+/**
+ * Writes the particles of every simulation step to a compact binary stream that a {@link Player}
+ * can scrub through.
+ *
+ * <p>Positions are stored as integers: multiples of a quantum when one is given, and otherwise
+ * the raw bits of each float. Colors are packed as 16 bits of hue and 8 bits each of saturation
+ * and brightness. Every {@code keyframeInterval} steps a keyframe stores each particle in full.
+ * The steps between store the indices of the particles that died, the change in position and
+ * color of each survivor, and the births in full, all as variable-length integers. An index of
+ * frame offsets and a footer are written on close.
+ */
+class Recorder implements Closeable {
+
+  static final int MAGIC = 0x4c505243;
+  static final int VERSION = 1;
+  static final int HEADER_BYTES = 16;
+  static final int FOOTER_BYTES = 16;
+  static final byte KEYFRAME = 0;
+  static final byte DELTA = 1;
+
+  public static final int DEFAULT_KEYFRAME_INTERVAL = 60;
+
+  private final FileChannel channel;
+  private final float quantum;
+  private final int keyframeInterval;
+  private ByteBuffer buffer = ByteBuffer.allocateDirect(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+  private long[] offsets = new long[64];
+  private int frames = 0;
+  private long position = 0;
+  private int size = 0;
+  private int[] x = new int[0], y = new int[0], z = new int[0], colors = new int[0];
+  private int[] nextX = new int[0], nextY = new int[0], nextZ = new int[0];
+  private int[] nextColors = new int[0];
+  private boolean[] survived = new boolean[0];
+
+  /**
+   * Creates a recording at {@code file}, storing positions as multiples of {@code quantum}, or
+   * exactly if it is zero.
+   */
+  public Recorder(final File file, final float quantum, final int keyframeInterval) {
+    Preconditions.checkArgument(keyframeInterval > 0,
+        "keyframeInterval must be positive but was %s", keyframeInterval);
+    Preconditions.checkArgument(quantum >= 0.0f, "quantum must not be negative but was %s",
+        quantum);
+    this.quantum = quantum;
+    this.keyframeInterval = keyframeInterval;
+    try {
+      channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      final ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+      header.putInt(MAGIC).putInt(VERSION).putFloat(quantum).putInt(keyframeInterval).flip();
+      write(header);
+    } catch (final Throwable rethrown) {
+      throw Throwables.propagate(rethrown);
+    }
+  }
+
+  public int frames() {
+    return frames;
+  }
+
+  /**
+   * Appends the state of {@code particles}, which must be tracking their sources, after step
+   * {@code step}.
+   */
+  public void record(final long step, final Tree tree, final Particles particles) {
+    final int n = particles.size();
+    if (nextX.length < n) {
+      final int capacity = Math.max(n, 2 * nextX.length);
+      nextX = new int[capacity];
+      nextY = new int[capacity];
+      nextZ = new int[capacity];
+      nextColors = new int[capacity];
+    }
+    for (int i = 0; i < n; ++i) {
+      final int node = particles.node(i);
+      nextX[i] = encode(particles.x(i));
+      nextY[i] = encode(particles.y(i));
+      nextZ[i] = encode(particles.z(i));
+      nextColors[i] = color(tree.hue(node), tree.saturation(node), tree.brightness(node));
+    }
+    final boolean keyframe = 0 == frames % keyframeInterval;
+    int survivors = 0;
+    if (!keyframe) {
+      int previous = -1;
+      while (survivors < n) {
+        final int source = particles.source(survivors);
+        if (source <= previous || source >= size) {
+          break;
+        }
+        previous = source;
+        ++survivors;
+      }
+    }
+    ensure(32 + 20L * n + 5L * size);
+    buffer.put(keyframe ? KEYFRAME : DELTA);
+    putVarLong(step);
+    putVarInt(n);
+    if (!keyframe) {
+      putVarInt(survivors);
+      if (survived.length < size) {
+        survived = new boolean[Math.max(size, 2 * survived.length)];
+      }
+      Arrays.fill(survived, 0, size, false);
+      for (int i = 0; i < survivors; ++i) {
+        survived[particles.source(i)] = true;
+      }
+      putVarInt(size - survivors);
+      int last = 0;
+      for (int i = 0; i < size; ++i) {
+        if (!survived[i]) {
+          putVarInt(i - last);
+          last = i;
+        }
+      }
+      for (int i = 0; i < survivors; ++i) {
+        final int source = particles.source(i);
+        putVarInt(zigzag(nextX[i] - x[source]));
+        putVarInt(zigzag(nextY[i] - y[source]));
+        putVarInt(zigzag(nextZ[i] - z[source]));
+        putVarLong(nextColors[i] == colors[source] ? 0 : (nextColors[i] & 0xffffffffL) + 1);
+      }
+    }
+    for (int i = survivors; i < n; ++i) {
+      putVarInt(zigzag(nextX[i]));
+      putVarInt(zigzag(nextY[i]));
+      putVarInt(zigzag(nextZ[i]));
+      putVarLong(nextColors[i] & 0xffffffffL);
+    }
+    if (frames == offsets.length) {
+      offsets = Arrays.copyOf(offsets, 2 * frames);
+    }
+    offsets[frames++] = position;
+    flush();
+    swap();
+    size = n;
+  }
+
+  @Override public void close() {
+    try {
+      final long index = position;
+      ensure(8L * frames + FOOTER_BYTES);
+      for (int i = 0; i < frames; ++i) {
+        buffer.putLong(offsets[i]);
+      }
+      buffer.putLong(index).putInt(frames).putInt(MAGIC);
+      flush();
+      channel.close();
+    } catch (final Throwable rethrown) {
+      throw Throwables.propagate(rethrown);
+    }
+  }
+
+  static int color(final float hue, final float saturation, final float brightness) {
+    final int h = Math.round(hue / 360.0f * 0xffff) & 0xffff;
+    final int s = Math.round(Math.max(0.0f, Math.min(1.0f, saturation)) * 0xff);
+    final int b = Math.round(Math.max(0.0f, Math.min(1.0f, brightness)) * 0xff);
+    return h << 16 | s << 8 | b;
+  }
+
+  private int encode(final float value) {
+    return 0.0f == quantum ? Float.floatToRawIntBits(value) : Math.round(value / quantum);
+  }
+
+  private static int zigzag(final int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+  private void putVarInt(final int value) {
+    putVarLong(value & 0xffffffffL);
+  }
+
+  private void putVarLong(long value) {
+    while (0 != (value & ~0x7fL)) {
+      buffer.put((byte) (value & 0x7f | 0x80));
+      value >>>= 7;
+    }
+    buffer.put((byte) value);
+  }
+
+  private void ensure(final long bytes) {
+    // A Player maps each frame whole, so no frame may outgrow one buffer.
+    Preconditions.checkArgument(bytes <= Integer.MAX_VALUE - 8,
+        "%s bytes are too many to record in one frame", bytes);
+    if (buffer.capacity() < bytes) {
+      buffer = ByteBuffer.allocateDirect((int) Math.min(Integer.MAX_VALUE - 8, 2 * bytes))
+          .order(ByteOrder.LITTLE_ENDIAN);
+    }
+    buffer.clear();
+  }
+
+  private void flush() {
+    buffer.flip();
+    try {
+      write(buffer);
+    } catch (final IOException e) {
+      throw Throwables.propagate(e);
+    }
+  }
+
+  private void write(final ByteBuffer bytes) throws IOException {
+    while (bytes.hasRemaining()) {
+      position += channel.write(bytes);
+    }
+  }
+
+  private void swap() {
+    int[] swap = x;
+    x = nextX;
+    nextX = swap;
+    swap = y;
+    y = nextY;
+    nextY = swap;
+    swap = z;
+    z = nextZ;
+    nextZ = swap;
+    swap = colors;
+    colors = nextColors;
+    nextColors = swap;
+  }
+}
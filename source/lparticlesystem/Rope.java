@@ -0,0 +1,100 @@
+package lparticlesystem;
+
+import java.util.NoSuchElementException;
+
+/**
+ * The string derived from a grammar, represented as the DAG of its (symbol, remaining depth)
+ * expansions rather than as flat characters. Every occurrence of a symbol at a given depth shares
+ * one node, so the rope takes space linear in the iteration count times the alphabet size while
+ * still streaming every symbol in order. Lengths and counts come from {@link Grammar}'s growth
+ * matrix; the rope only memoizes which expansions are empty, so streaming never walks one.
+ */
+class Rope {
+
+  private final Grammar grammar;
+  private final int iterations;
+  private final boolean[][] empty;
+
+  public Rope(final Grammar grammar, final int iterations) {
+    this.grammar = grammar;
+    this.iterations = iterations;
+    char maximum = 0;
+    for (final char symbol : grammar.alphabet()) {
+      maximum = (char) Math.max(maximum, symbol);
+    }
+    empty = new boolean[iterations + 1][maximum + 1];
+    for (int depth = 0; depth <= iterations; ++depth) {
+      for (final char symbol : grammar.alphabet()) {
+        final char[] production = grammar.production(symbol);
+        if (null != production) {
+          boolean nothing = true;
+          for (int i = 0; nothing && depth > 0 && i < production.length; ++i) {
+            nothing = isEmpty(production[i], depth - 1);
+          }
+          empty[depth][symbol] = nothing;
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns whether {@code symbol} expands to no symbols with {@code depth} rewrites to go.
+   */
+  public boolean isEmpty(final char symbol, final int depth) {
+    return symbol < empty[depth].length && empty[depth][symbol];
+  }
+
+  public SymbolIterator iterator() {
+    return new Cursor();
+  }
+
+  private class Cursor implements SymbolIterator {
+
+    private final char[][] words = new char[iterations + 1][];
+    private final int[] offsets = new int[iterations + 1];
+    private int top = 0;
+    private char symbol;
+    private boolean ready = false;
+
+    public Cursor() {
+      words[0] = grammar.start();
+    }
+
+    @Override public boolean hasNext() {
+      if (!ready) {
+        ready = advance();
+      }
+      return ready;
+    }
+
+    @Override public char next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      ready = false;
+      return symbol;
+    }
+
+    private boolean advance() {
+      while (top >= 0) {
+        final char[] word = words[top];
+        if (offsets[top] == word.length) {
+          --top;
+          continue;
+        }
+        final char next = word[offsets[top]++];
+        final char[] production = grammar.production(next);
+        if (null == production) {
+          symbol = next;
+          return true;
+        }
+        if (!isEmpty(next, iterations - top)) {
+          ++top;
+          words[top] = production;
+          offsets[top] = 0;
+        }
+      }
+      return false;
+    }
+  }
+}
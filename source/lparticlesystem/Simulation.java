@@ -0,0 +1,168 @@
+package lparticlesystem;
+
+import java.io.File;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import processing.core.PVector;
+
+import com.google.common.base.Throwables;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+/**
+ * Steps an {@link LSystem} at a fixed rate on its own thread and publishes each step as a
+ * {@link Snapshot} for the render thread. Modulators and spawned particles are handed over
+ * without locks and take effect at the start of the next step.
+ */
+class Simulation {
+
+  private static class Spawn {
+    public final PVector position;
+    public final float angleMod;
+    public final float growMod;
+
+    public Spawn(final PVector position, final float angleMod, final float growMod) {
+      this.position = position;
+      this.angleMod = angleMod;
+      this.growMod = growMod;
+    }
+  }
+
+  // Recorded positions are rounded to a hundredth of a unit, well below a pixel at any useful zoom.
+  private static final float RECORDING_QUANTUM = 0.01f;
+
+  private final LSystem lsystem;
+  private final float dt;
+  private final TripleBuffer<Snapshot> snapshots =
+      new TripleBuffer<>(new Snapshot(), new Snapshot(), new Snapshot());
+  private final ConcurrentLinkedQueue<Spawn> spawns = new ConcurrentLinkedQueue<>();
+  private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+  private final ScheduledExecutorService executor = Executors.newSingleThreadScheduledExecutor(
+      new ThreadFactoryBuilder().setNameFormat("simulation").setDaemon(true).build());
+  private volatile float angleMod = 1.0f;
+  private volatile float growMod = 1.0f;
+  private volatile Throwable failure = null;
+  private long steps = 0;
+  private Recorder recorder = null;
+  private File recording = null;
+
+  public Simulation(final LSystem lsystem, final float dt) {
+    this.lsystem = lsystem;
+    this.dt = dt;
+  }
+
+  public void start() {
+    executor.scheduleAtFixedRate(new Runnable() {
+
+      @Override public void run() {
+        try {
+          tick();
+        } catch (final Throwable rethrown) {
+          failure = rethrown;
+          throw Throwables.propagate(rethrown);
+        }
+      }
+    }, 0, Math.max(1, (long) (dt * 1.0e9)), TimeUnit.NANOSECONDS);
+  }
+
+  /**
+   * Starts recording every step to {@code file}, or stops recording if it is null, from the start
+   * of the next step. The returned future completes with the file of the recording this ends once
+   * it is closed and can be played, or with null if there was none.
+   */
+  public ListenableFuture<File> record(final File file) {
+    final SettableFuture<File> finished = SettableFuture.create();
+    commands.add(new Runnable() {
+
+      @Override public void run() {
+        try {
+          finished.set(finishRecording());
+          if (null != file) {
+            recorder = new Recorder(file, RECORDING_QUANTUM, Recorder.DEFAULT_KEYFRAME_INTERVAL);
+            recording = file;
+            lsystem.setRecorder(recorder);
+          }
+        } catch (final Throwable rethrown) {
+          finished.setException(rethrown);
+          throw Throwables.propagate(rethrown);
+        }
+      }
+    });
+    return finished;
+  }
+
+  /**
+   * Stops stepping without waiting. Any step in progress and any queued recording commands finish,
+   * and then the simulation thread closes any recording so that it is left intact. The returned
+   * future completes with that recording's file once it has, or with null if there was none.
+   */
+  public ListenableFuture<File> stop() {
+    final SettableFuture<File> finished = SettableFuture.create();
+    executor.execute(new Runnable() {
+
+      @Override public void run() {
+        try {
+          for (Runnable command = commands.poll(); null != command; command = commands.poll()) {
+            command.run();
+          }
+          finished.set(finishRecording());
+        } catch (final Throwable rethrown) {
+          finished.setException(rethrown);
+        }
+      }
+    });
+    executor.shutdown();
+    return finished;
+  }
+
+  public void modulate(final float angleMod, final float growMod) {
+    this.angleMod = angleMod;
+    this.growMod = growMod;
+  }
+
+  public void spawn(final PVector position, final float angleMod, final float growMod) {
+    spawns.add(new Spawn(position.get(), angleMod, growMod));
+  }
+
+  /**
+   * Returns the latest published step, which the simulation leaves untouched until the next call,
+   * or null before the first step.
+   */
+  public Snapshot latest() {
+    if (null != failure) {
+      throw Throwables.propagate(failure);
+    }
+    return snapshots.front();
+  }
+
+  private File finishRecording() {
+    if (null == recorder) {
+      return null;
+    }
+    lsystem.setRecorder(null);
+    recorder.close();
+    recorder = null;
+    final File finished = recording;
+    recording = null;
+    return finished;
+  }
+
+  private void tick() {
+    for (Runnable command = commands.poll(); null != command; command = commands.poll()) {
+      command.run();
+    }
+    for (Spawn spawn = spawns.poll(); null != spawn; spawn = spawns.poll()) {
+      lsystem.addParticle(spawn.position, spawn.angleMod, spawn.growMod);
+    }
+    lsystem.modulate(angleMod, growMod);
+    lsystem.step(dt);
+    final Snapshot snapshot = snapshots.back();
+    lsystem.publish(snapshot);
+    snapshot.step = ++steps;
+    snapshots.publish();
+  }
+}
@@ -0,0 +1,11 @@
+package lparticlesystem;
+
+/**
+ * The particles of one simulation step together with the tree they were following.
+ */
+class Snapshot {
+
+  public final Particles particles = new Particles();
+  public Tree tree = null;
+  public long step = 0;
+}
@@ -0,0 +1,28 @@
+package lparticlesystem;
+
+import java.nio.CharBuffer;
+import java.util.NoSuchElementException;
+
+class SymbolBufferIterator implements SymbolIterator {
+
+  private final CharBuffer symbols;
+  private final int limit;
+  private int offset;
+
+  public SymbolBufferIterator(final CharBuffer symbols) {
+    this.symbols = symbols;
+    limit = symbols.limit();
+    offset = symbols.position();
+  }
+
+  @Override public boolean hasNext() {
+    return offset < limit;
+  }
+
+  @Override public char next() {
+    if (offset >= limit) {
+      throw new NoSuchElementException();
+    }
+    return symbols.get(offset++);
+  }
+}
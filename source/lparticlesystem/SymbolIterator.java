@@ -0,0 +1,8 @@
+package lparticlesystem;
+
+interface SymbolIterator {
+
+  boolean hasNext();
+
+  char next();
+}
@@ -0,0 +1,130 @@
+package lparticlesystem;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+/**
+ * A turtle-interpreted L-system stored as flat arrays indexed by segment. Segment 0 is the root.
+ */
+class Tree {
+
+  private static final float HUE_DIVISOR = 500.0f;
+  private static final float SATURATION_DIVISOR = 50.0f;
+
+  public static final int NONE = -1;
+
+  private final int size;
+  public final float[] x0, y0, z0;
+  public final float[] x1, y1, z1;
+  public final float[] h, b;
+  public final int[] depth;
+  public final int[] parent;
+  public final int[] firstChild;
+  public final int[] nextSibling;
+
+  public Tree(final int size) {
+    this(size, new int[size], new int[size], new int[size], new int[size]);
+  }
+
+  /**
+   * Creates a tree with the same segments and links as {@code topology} but its own, uninitialized
+   * geometry, for reinterpreting the same symbols with different modulators.
+   */
+  public Tree(final Tree topology) {
+    this(topology.size,
+        topology.depth, topology.parent, topology.firstChild, topology.nextSibling);
+  }
+
+  private Tree(final int size, final int[] depth, final int[] parent, final int[] firstChild,
+      final int[] nextSibling) {
+    this.size = size;
+    x0 = new float[size];
+    y0 = new float[size];
+    z0 = new float[size];
+    x1 = new float[size];
+    y1 = new float[size];
+    z1 = new float[size];
+    h = new float[size];
+    b = new float[size];
+    this.depth = depth;
+    this.parent = parent;
+    this.firstChild = firstChild;
+    this.nextSibling = nextSibling;
+  }
+
+  public boolean sharesTopology(final Tree that) {
+    return depth == that.depth;
+  }
+
+  public int size() {
+    return size;
+  }
+
+  public void attach(final int i, final int parent) {
+    this.parent[i] = parent;
+    depth[i] = NONE == parent ? 0 : depth[parent] + 1;
+  }
+
+  public void set(final int i, final float x0, final float y0, final float z0,
+      final float x1, final float y1, final float z1, final float h, final float b) {
+    this.x0[i] = x0;
+    this.y0[i] = y0;
+    this.z0[i] = z0;
+    this.x1[i] = x1;
+    this.y1[i] = y1;
+    this.z1[i] = z1;
+    this.h[i] = h;
+    this.b[i] = b;
+  }
+
+  public void link() {
+    Arrays.fill(firstChild, 0, size, NONE);
+    Arrays.fill(nextSibling, 0, size, NONE);
+    for (int i = size - 1; i > 0; --i) {
+      nextSibling[i] = firstChild[parent[i]];
+      firstChild[parent[i]] = i;
+    }
+  }
+
+  public void write(final ByteBuffer buffer) {
+    for (final float[] column : new float[][] { x0, y0, z0, x1, y1, z1, h, b }) {
+      buffer.asFloatBuffer().put(column, 0, size);
+      buffer.position(buffer.position() + size * Float.SIZE / Byte.SIZE);
+    }
+    for (final int[] column : new int[][] { depth, parent, firstChild, nextSibling }) {
+      buffer.asIntBuffer().put(column, 0, size);
+      buffer.position(buffer.position() + size * Integer.SIZE / Byte.SIZE);
+    }
+  }
+
+  public static Tree read(final ByteBuffer buffer, final int size) {
+    final Tree tree = new Tree(size);
+    for (final float[] column : new float[][] {
+        tree.x0, tree.y0, tree.z0, tree.x1, tree.y1, tree.z1, tree.h, tree.b }) {
+      buffer.asFloatBuffer().get(column, 0, size);
+      buffer.position(buffer.position() + size * Float.SIZE / Byte.SIZE);
+    }
+    for (final int[] column : new int[][] {
+        tree.depth, tree.parent, tree.firstChild, tree.nextSibling }) {
+      buffer.asIntBuffer().get(column, 0, size);
+      buffer.position(buffer.position() + size * Integer.SIZE / Byte.SIZE);
+    }
+    return tree;
+  }
+
+  public static long bytes(final int size) {
+    return 8L * size * Float.SIZE / Byte.SIZE + 4L * size * Integer.SIZE / Byte.SIZE;
+  }
+
+  public float hue(final int i) {
+    return (h[i] / HUE_DIVISOR + 360.0f) % 360.0f;
+  }
+
+  public float saturation(final int i) {
+    return depth[i] / SATURATION_DIVISOR;
+  }
+
+  public float brightness(final int i) {
+    return b[i];
+  }
+}
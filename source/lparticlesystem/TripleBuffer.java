@@ -0,0 +1,47 @@
+package lparticlesystem;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.google.common.collect.ImmutableList;
+
+/**
+ * Three buffers shared by one writer and one reader without locks. The writer fills the back
+ * buffer and publishes it by swapping it with the middle one. The reader swaps the middle buffer
+ * into the front whenever a newer one has been published, so neither side ever waits for the
+ * other or sees a buffer being written.
+ */
+class TripleBuffer<T> {
+
+  private static final int INDEX_MASK = 3;
+  private static final int FRESH = 4;
+
+  private final ImmutableList<T> buffers;
+  private final AtomicInteger middle = new AtomicInteger(1);
+  private int back = 0;
+  private int front = 2;
+  private boolean published = false;
+
+  public TripleBuffer(final T first, final T second, final T third) {
+    buffers = ImmutableList.of(first, second, third);
+  }
+
+  public T back() {
+    return buffers.get(back);
+  }
+
+  public void publish() {
+    back = middle.getAndSet(back | FRESH) & INDEX_MASK;
+  }
+
+  /**
+   * Returns the most recently published buffer, which stays unchanged until the next call, or
+   * null if nothing has been published yet.
+   */
+  public T front() {
+    if (0 != (middle.get() & FRESH)) {
+      front = middle.getAndSet(front) & INDEX_MASK;
+      published = true;
+    }
+    return published ? buffers.get(front) : null;
+  }
+}
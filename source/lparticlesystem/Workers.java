@@ -0,0 +1,16 @@
+package lparticlesystem;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * The fork/join pool shared by every parallel phase. Derivation, tree building, particle steps
+ * and rasterization can run at once from different threads, and one pool sized to the cores keeps
+ * them from oversubscribing the machine between them.
+ */
+final class Workers {
+
+  public static final ForkJoinPool POOL = new ForkJoinPool();
+
+  private Workers() {
+  }
+}